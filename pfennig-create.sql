@@ -10,10 +10,29 @@ create table invoices (
   paid_at                   timestamp,
   label                     varchar(255),
   address_hash              varchar(255),
+  received_satoshi          bigint,
+  status                    varchar(255),
+  last_payment_height       integer,
+  payment_count             integer,
+  confirmation_thresholds   varchar(255),
   created_at                timestamp not null,
   constraint pk_invoices primary key (id))
 ;
 
+create table notifications (
+  id                        integer not null,
+  url                       varchar(255),
+  body                      text,
+  attempts                  integer,
+  next_attempt_at           timestamp,
+  delivered_at              timestamp,
+  failed_at                 timestamp,
+  last_error                varchar(255),
+  created_at                timestamp not null,
+  transaction_hash          varchar(255),
+  constraint pk_notifications primary key (id))
+;
+
 create table payments (
   id                        integer not null,
   received_satoshi_value    bigint,
@@ -22,6 +41,8 @@ create table payments (
   address_hash              varchar(255),
   paid_at                   timestamp,
   confirmed_at              timestamp,
+  confirmations_notified    integer,
+  next_confirmation_height  integer,
   created_at                timestamp not null,
   constraint pk_payments primary key (id))
 ;
@@ -39,6 +60,8 @@ create table watching_addresses (
 
 create sequence invoices_seq;
 
+create sequence notifications_seq;
+
 create sequence payments_seq;
 
 create sequence watching_addresses_seq;
@@ -1,11 +1,15 @@
 drop table if exists invoices cascade;
 
+drop table if exists notifications cascade;
+
 drop table if exists payments cascade;
 
 drop table if exists watching_addresses cascade;
 
 drop sequence if exists invoices_seq;
 
+drop sequence if exists notifications_seq;
+
 drop sequence if exists payments_seq;
 
 drop sequence if exists watching_addresses_seq;
@@ -0,0 +1,125 @@
+package pfennig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * drives a treasury with simulated transactions and blocks instead of peers.
+ *
+ * the treasury must run on the unit test network (org.bitcoinj.unittest), its blocks are solved instantly.
+ * a payment is handed to the wallet like a transaction announced by a peer and mined into the next block, thus the
+ * wallet, the WalletListener, the PaymentIngestor and the ConfirmationTracker see the same events as on a real network.
+ *
+ * the difficulty only stays at its minimum if blocks are spaced by the target timespan, thus every block is
+ * timestamped BLOCK_SPACING after its parent and the bitcoinj clock is moved along (see Utils.setMockClock).
+ */
+public class ChainSimulator {
+    static Logger logger = LoggerFactory.getLogger(ChainSimulator.class.getName());
+
+    private final long blockSpacing; // in seconds
+
+    private Treasury treasury;
+    private NetworkParameters params;
+    private Address minerAddress;
+    private List<Transaction> mempool = new ArrayList<Transaction>();
+    private ScheduledExecutorService miner;
+    private AtomicLong transactions = new AtomicLong();
+    private AtomicLong blocks = new AtomicLong();
+
+    public ChainSimulator(Treasury treasury) {
+        if (!treasury.params.getId().equals(NetworkParameters.ID_UNITTESTNET)) {
+            throw new IllegalArgumentException("the chain simulator needs a treasury on " + NetworkParameters.ID_UNITTESTNET);
+        }
+        this.treasury = treasury;
+        this.params = treasury.params;
+        this.minerAddress = new ECKey().toAddress(this.params);
+        // the retarget looks at interval - 1 block gaps. rounded up, thus the difficulty never rises
+        this.blockSpacing = (this.params.getTargetTimespan() + this.params.getInterval() - 2) / (this.params.getInterval() - 1);
+        this.miner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("chain-simulator").setDaemon(true).build());
+    }
+
+    /**
+     * mines a block with the waiting transactions every blockInterval
+     *
+     * @param blockInterval - in milliseconds
+     */
+    public void start(long blockInterval) {
+        this.miner.scheduleAtFixedRate(() -> {
+            try {
+                this.mineBlock();
+            } catch (Exception e) {
+                logger.error("failed to mine block: {}", e.getMessage());
+            }
+        }, blockInterval, blockInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() throws InterruptedException {
+        this.miner.shutdown();
+        this.miner.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * announces a transaction paying the address to the wallet. it is mined into the next block
+     */
+    public Transaction pay(String address, Coin value) throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(this.params, value, new Address(this.params, address));
+        // the fake transaction spends a fake output, thus it must be added to the wallet before it may be mined
+        synchronized (this.mempool) {
+            this.mempool.add(tx);
+        }
+        this.treasury.wallet.receivePending(tx, null);
+        this.transactions.incrementAndGet();
+        return tx;
+    }
+
+    /**
+     * mines the waiting transactions into a block on top of the chain head
+     */
+    public synchronized Block mineBlock() throws Exception {
+        List<Transaction> transactions;
+        synchronized (this.mempool) {
+            transactions = new ArrayList<Transaction>(this.mempool);
+            this.mempool.clear();
+        }
+        Block head = this.treasury.blockChain.getChainHead().getHeader();
+        long time = head.getTimeSeconds() + this.blockSpacing;
+        Utils.setMockClock(time);
+        Block block = head.createNextBlock(this.minerAddress, time);
+        for (Transaction tx : transactions) {
+            block.addTransaction(tx);
+        }
+        block.solve();
+        this.treasury.blockChain.add(block);
+        this.blocks.incrementAndGet();
+        logger.debug("mined block {} with {} transactions", this.treasury.getChainHeight(), transactions.size());
+        return block;
+    }
+
+    /**
+     * @return number of simulated transactions and blocks
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("transactions", this.transactions.get());
+        stats.put("blocks", this.blocks.get());
+        return stats;
+    }
+}
@@ -0,0 +1,111 @@
+package pfennig;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+
+/**
+ * in-memory stand-ins for the chain, the payment store and the exchange rate source, thus the benchmarks run
+ * without a database, peers or the exchange rate API.
+ */
+class Fakes {
+    static final int CHAIN_HEIGHT = 350000;
+    static final NetworkParameters PARAMS = NetworkParameters.fromID(NetworkParameters.ID_REGTEST);
+
+    /**
+     * a treasury with a fixed chain height. its block store lives in a temporary directory and is never synced
+     */
+    static class FakeTreasury extends Treasury {
+        FakeTreasury(File directory) throws Exception {
+            super(NetworkParameters.ID_REGTEST, directory);
+        }
+
+        @Override
+        public Integer getChainHeight() {
+            return CHAIN_HEIGHT;
+        }
+    }
+
+    static synchronized void installTreasury() throws Exception {
+        if (!(Treasury.instance instanceof FakeTreasury)) {
+            File directory = Files.createTempDirectory("pfennig-benchmark").toFile();
+            directory.deleteOnExit();
+            Treasury.instance = new FakeTreasury(directory);
+        }
+    }
+
+    /**
+     * fixed rates that never go stale, thus no refresh is triggered while benchmarking
+     *
+     * @param rate - price of one bitcoin in the smallest unit of the fiat currency (see Fiat.SMALLEST_UNIT_EXPONENT)
+     */
+    static PriceCalculator.Snapshot rates(String currency, long rate) {
+        Map<String, PriceCalculator.Rate> rates = new HashMap<String, PriceCalculator.Rate>();
+        rates.put(currency, new PriceCalculator.Rate(new ExchangeRate(Fiat.valueOf(currency, rate)), Long.MAX_VALUE));
+        return new PriceCalculator.Snapshot(rates);
+    }
+
+    static String address() {
+        return new ECKey().toAddress(PARAMS).toString();
+    }
+
+    static Payment payment(String addressHash, int index, long satoshi, Integer appearedAtChainHeight) {
+        Payment payment = new Payment();
+        payment.setId(index + 1);
+        payment.setAddressHash(addressHash);
+        payment.setTransactionHash(Sha256Hash.of(new byte[] { (byte) index, (byte) (index >> 8) }).toString());
+        payment.setReceivedSatoshiValue(satoshi);
+        payment.setAppearedAtChainHeight(appearedAtChainHeight);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        payment.setCreatedAt(now);
+        payment.setPaidAt(now);
+        if (appearedAtChainHeight != null) {
+            payment.setConfirmedAt(now);
+        }
+        return payment;
+    }
+
+    /**
+     * an invoice paid in full by the given number of payments. the payments are preloaded, like Invoice.preloadPayments()
+     * does, thus the database is never queried
+     */
+    static Invoice invoice(int paymentCount) {
+        Invoice invoice = new Invoice();
+        invoice.initialize();
+        invoice.setId(1);
+        invoice.setIdentifier("benchmark-" + paymentCount);
+        invoice.setOrderId("order-" + paymentCount);
+        invoice.setLabel("Pfennig Shop");
+        invoice.setDescription("Order #" + paymentCount + " & shipping");
+        invoice.setCurrency("EUR");
+        invoice.setPrice(2499L);
+        invoice.setSatoshiValue(10000000L);
+        invoice.setAddressHash(Fakes.address());
+        invoice.setCreatedAt(new Timestamp(System.currentTimeMillis()));
+
+        List<Payment> payments = new ArrayList<Payment>();
+        long remaining = invoice.getSatoshiValue();
+        for (int i = paymentCount - 1; i >= 0; i--) {
+            long satoshi = i == 0 ? remaining : invoice.getSatoshiValue() / paymentCount;
+            remaining -= satoshi;
+            payments.add(Fakes.payment(invoice.getAddressHash(), i, satoshi, CHAIN_HEIGHT - i));
+        }
+        // ordered by id DESC, like Payment.findByAddressHash()
+        invoice.payments = payments;
+        invoice.receivedSatoshi = invoice.getSatoshiValue();
+        invoice.paymentCount = paymentCount;
+        invoice.lastPaymentHeight = paymentCount == 0 ? null : payments.get(0).getAppearedAtChainHeight();
+        invoice.status = Invoice.statusFor(invoice.receivedSatoshi, invoice.getSatoshiValue());
+        return invoice;
+    }
+}
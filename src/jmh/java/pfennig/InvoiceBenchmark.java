@@ -0,0 +1,52 @@
+package pfennig;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * serializing an invoice, done for every API response, notification and invoice event
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvoiceBenchmark {
+    @Param({ "1", "10" })
+    int payments;
+
+    Invoice invoice;
+
+    @Setup
+    public void setup() throws Exception {
+        Fakes.installTreasury();
+        this.invoice = Fakes.invoice(this.payments);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return this.invoice.toJson();
+    }
+
+    @Benchmark
+    public String getStatus() {
+        return this.invoice.getStatus();
+    }
+
+    @Benchmark
+    public String getPaymentUri() {
+        return this.invoice.getPaymentUri();
+    }
+}
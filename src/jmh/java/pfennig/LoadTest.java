@@ -0,0 +1,219 @@
+package pfennig;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Wallet;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.avaje.ebean.EbeanServer;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * end-to-end load test against a local PostgreSQL database.
+ *
+ * creates invoices the way the API does, pays each of them with a simulated transaction (see ChainSimulator) and
+ * receives the notifications with a local webhook server. reports invoices/sec, payments/sec and the latency from a
+ * transaction being seen to its notification being delivered.
+ *
+ * the database is migrated but never reset; use a dedicated database. configured with environment variables:
+ * DATABASE_URL, LOADTEST_INVOICES, LOADTEST_CLIENTS, LOADTEST_PAYMENT_RATE (payments per second),
+ * LOADTEST_BLOCK_INTERVAL (in milliseconds) and LOADTEST_TIMEOUT (in seconds).
+ */
+public class LoadTest {
+    // System.nanoTime() when the transaction paying the invoice was announced, by invoice identifier
+    private Map<String, Long> seenAt = new ConcurrentHashMap<String, Long>();
+    // transaction seen to notification delivered, in nanoseconds
+    private List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+    private Map<String, Boolean> notified = new ConcurrentHashMap<String, Boolean>();
+
+    public static void main(String[] args) throws Exception {
+        String databaseUrl = System.getenv("DATABASE_URL");
+        if (databaseUrl == null) {
+            databaseUrl = "postgresql://postgres:@localhost:5432/pfennig_loadtest";
+        }
+        int invoiceCount = App.intFromEnv("LOADTEST_INVOICES", 1000);
+        int clients = App.intFromEnv("LOADTEST_CLIENTS", 8);
+        int paymentRate = App.intFromEnv("LOADTEST_PAYMENT_RATE", 200);
+        int blockInterval = App.intFromEnv("LOADTEST_BLOCK_INTERVAL", 1000);
+        int timeout = App.intFromEnv("LOADTEST_TIMEOUT", 120);
+
+        System.out.println("load test with " + invoiceCount + " invoices, " + clients + " clients, " + paymentRate
+                + " payments/sec and a block every " + blockInterval + "ms against " + databaseUrl);
+        new LoadTest().run(databaseUrl, invoiceCount, clients, paymentRate, blockInterval, timeout);
+        System.exit(0);
+    }
+
+    void run(String databaseUrl, int invoiceCount, int clients, int paymentRate, long blockInterval, int timeout) throws Exception {
+        EbeanServer ebeanServer = App.createEbeanServerFromUrl(databaseUrl, false);
+        new Migrations(ebeanServer).migrate();
+        Invoice.databaseConnnection = ebeanServer;
+        WatchingAddress.databaseConnnection = ebeanServer;
+        Payment.databaseConnnection = ebeanServer;
+        Notification.databaseConnnection = ebeanServer;
+        AddressIndex addressIndex = new AddressIndex();
+        addressIndex.load(ebeanServer);
+        AddressIndex.instance = addressIndex;
+        Utils.HMAC_KEY = "loadtest";
+
+        HttpServer webhooks = this.startWebhookServer();
+        String notificationUrl = "http://127.0.0.1:" + webhooks.getAddress().getPort() + "/notifications";
+
+        // a fresh wallet on the unit test network, its blocks need no proof of work
+        File directory = Files.createTempDirectory("pfennig-loadtest").toFile();
+        NetworkParameters params = NetworkParameters.fromID(NetworkParameters.ID_UNITTESTNET);
+        String watchingKey = new Wallet(params).getWatchingKey().serializePubB58(params);
+        Treasury treasury = new Treasury(NetworkParameters.ID_UNITTESTNET, directory);
+        treasury.setAddressPoolSize(Math.min(invoiceCount, 10000));
+        treasury.loadWalletFromWatchingKey(watchingKey, new File(directory, "loadtest.wallet"), org.bitcoinj.core.Utils.currentTimeSeconds());
+        treasury.addressPool.start();
+        Treasury.instance = treasury;
+
+        NotificationDispatcher dispatcher = new NotificationDispatcher(ebeanServer, new NotificationClient(5000, 10000),
+                App.intFromEnv("NOTIFICATION_WORKERS", 4),
+                App.intFromEnv("NOTIFICATION_HOST_CONCURRENCY", 8),
+                App.intFromEnv("NOTIFICATION_MAX_ATTEMPTS", 10));
+        dispatcher.start();
+        NotificationDispatcher.instance = dispatcher;
+
+        ChainSimulator simulator = new ChainSimulator(treasury);
+
+        // invoices, created by concurrent clients
+        List<Invoice> invoices = Collections.synchronizedList(new ArrayList<Invoice>());
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < invoiceCount; i++) {
+            int number = i;
+            clientPool.execute(() -> {
+                try {
+                    invoices.add(LoadTest.createInvoice(treasury, notificationUrl, number));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        clientPool.shutdown();
+        clientPool.awaitTermination(timeout, TimeUnit.SECONDS);
+        double invoiceSeconds = (System.nanoTime() - start) / 1e9;
+
+        // payments, announced at a fixed rate and mined into blocks
+        simulator.start(blockInterval);
+        start = System.nanoTime();
+        long paymentInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(paymentRate, 1);
+        for (int i = 0; i < invoices.size(); i++) {
+            long due = start + i * paymentInterval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            Invoice invoice = invoices.get(i);
+            this.seenAt.put(invoice.getIdentifier(), System.nanoTime());
+            simulator.pay(invoice.getAddressHash(), invoice.getSatoshi());
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        while (LoadTest.inserted(treasury) < invoices.size() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        double paymentSeconds = (System.nanoTime() - start) / 1e9;
+        long payments = LoadTest.inserted(treasury);
+        while (this.latencies.size() < invoices.size() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        simulator.stop();
+        dispatcher.stop();
+        treasury.paymentIngestor.stop();
+        webhooks.stop(0);
+
+        System.out.println("invoices:  " + invoices.size() + " created (" + failures.get() + " failed) in "
+                + String.format("%.2f", invoiceSeconds) + "s, " + String.format("%.1f", invoices.size() / invoiceSeconds) + " invoices/sec");
+        System.out.println("payments:  " + payments + " written in " + String.format("%.2f", paymentSeconds) + "s, "
+                + String.format("%.1f", payments / paymentSeconds) + " payments/sec");
+        System.out.println("chain:     " + simulator.getStats().toJSONString() + " confirmations: " + treasury.confirmationTracker.getStats().toJSONString());
+        System.out.println("webhooks:  " + this.latencies.size() + " delivered. tx seen -> webhook delivered " + LoadTest.percentiles(this.latencies));
+    }
+
+    private static Invoice createInvoice(Treasury treasury, String notificationUrl, int number) {
+        JSONObject attributes = new JSONObject();
+        // priced in BTC, thus no exchange rate is needed
+        attributes.put("price", 100000 + number);
+        attributes.put("currency", "BTC");
+        attributes.put("notificationUrl", notificationUrl);
+        attributes.put("orderId", "loadtest-" + System.currentTimeMillis() + "-" + number);
+        attributes.put("label", "load test");
+        Invoice invoice = Invoice.fromJson(attributes, null);
+        invoice.setAddressHash(treasury.freshReceiveAddress());
+        if (!invoice.save()) {
+            throw new IllegalStateException("invalid invoice: " + invoice.getViolations());
+        }
+        return invoice;
+    }
+
+    private static long inserted(Treasury treasury) {
+        return ((Number) treasury.paymentIngestor.getStats().get("inserted")).longValue();
+    }
+
+    /**
+     * records the latency of the first notification of an invoice with a received payment
+     */
+    private HttpServer startWebhookServer() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/notifications", exchange -> {
+            long deliveredAt = System.nanoTime();
+            InputStream in = exchange.getRequestBody();
+            Object body = JSONValue.parse(new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+            in.close();
+            if (body instanceof Map) {
+                Map invoice = (Map) body;
+                Object received = invoice.get("receivedSatoshi");
+                Long seenAt = this.seenAt.get(String.valueOf(invoice.get("identifier")));
+                if (seenAt != null && received instanceof Number && ((Number) received).longValue() > 0
+                        && this.notified.putIfAbsent(String.valueOf(invoice.get("identifier")), true) == null) {
+                    this.latencies.add(deliveredAt - seenAt);
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            OutputStream out = exchange.getResponseBody();
+            out.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+        return server;
+    }
+
+    static String percentiles(List<Long> nanos) {
+        List<Long> sorted;
+        synchronized (nanos) {
+            sorted = new ArrayList<Long>(nanos);
+        }
+        if (sorted.isEmpty()) {
+            return "(no samples)";
+        }
+        Collections.sort(sorted);
+        return "p50=" + LoadTest.millis(sorted, 0.5) + "ms p90=" + LoadTest.millis(sorted, 0.9) + "ms p99=" + LoadTest.millis(sorted, 0.99)
+                + "ms max=" + LoadTest.millis(sorted, 1.0) + "ms";
+    }
+
+    private static String millis(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return String.format("%.1f", sorted.get(Math.max(index, 0)) / 1e6);
+    }
+}
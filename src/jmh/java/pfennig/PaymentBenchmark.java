@@ -0,0 +1,39 @@
+package pfennig;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * serializing a payment, done for every payment listed by /api/invoices/:identifier/payments
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentBenchmark {
+    Payment payment;
+
+    @Setup
+    public void setup() throws Exception {
+        Fakes.installTreasury();
+        this.payment = Fakes.payment(Fakes.address(), 0, 10000000L, Fakes.CHAIN_HEIGHT - 2);
+    }
+
+    @Benchmark
+    public Map<String, Object> getAttributes() {
+        return this.payment.getAttributes();
+    }
+}
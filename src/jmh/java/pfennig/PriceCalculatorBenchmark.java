@@ -0,0 +1,45 @@
+package pfennig;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * converting prices, done when an invoice is created and for /api/price. rates come from a fixed snapshot
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriceCalculatorBenchmark {
+    PriceCalculator calculator;
+
+    @Setup
+    public void setup() {
+        // 250.00 EUR per bitcoin
+        this.calculator = new PriceCalculator("EUR", Fakes.rates("EUR", 2500000L));
+    }
+
+    @Benchmark
+    public Fiat coinToFiat() {
+        return this.calculator.coinToFiat(12345678L);
+    }
+
+    @Benchmark
+    public Coin fiatToCoin() {
+        return this.calculator.fiatToCoin("EUR", 2499L);
+    }
+}
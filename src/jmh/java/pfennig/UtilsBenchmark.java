@@ -0,0 +1,39 @@
+package pfennig;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * signing a notification body, done for every notification sent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+    String body;
+
+    @Setup
+    public void setup() throws Exception {
+        Fakes.installTreasury();
+        Utils.HMAC_KEY = "benchmark-secret";
+        this.body = Fakes.invoice(1).toJson();
+    }
+
+    @Benchmark
+    public String calculateHMAC() {
+        return Utils.calculateHMAC(this.body);
+    }
+}
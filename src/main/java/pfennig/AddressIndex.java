@@ -0,0 +1,101 @@
+package pfennig;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+/**
+ * in memory index of the owner (invoice or watching address) of every address we have handed out or watch.
+ *
+ * loaded once at startup and kept up to date by Invoice.save() and WatchingAddress.save(), so routing a
+ * payment to its owner does not need to query the database.
+ */
+public class AddressIndex {
+    public static AddressIndex instance;
+    static Logger logger = LoggerFactory.getLogger(AddressIndex.class.getName());
+
+    public enum OwnerType {
+        INVOICE, WATCHING_ADDRESS
+    }
+
+    /**
+     * the owner of an address
+     */
+    public static class Owner {
+        public final OwnerType type;
+        public final Integer id;
+
+        public Owner(OwnerType type, Integer id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    private ConcurrentHashMap<String, Owner> owners = new ConcurrentHashMap<String, Owner>();
+
+    public void load(EbeanServer databaseConnnection) throws SQLException {
+        long start = System.nanoTime();
+        Transaction transaction = databaseConnnection.beginTransaction();
+        try {
+            this.load(transaction, "select id, address_hash from watching_addresses", OwnerType.WATCHING_ADDRESS);
+            // invoices win if an address is both an invoice address and watched
+            this.load(transaction, "select id, address_hash from invoices", OwnerType.INVOICE);
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+        logger.info("loaded {} addresses in {}ms", this.owners.size(), (System.nanoTime() - start) / 1000000);
+    }
+
+    private void load(Transaction transaction, String sql, OwnerType type) throws SQLException {
+        Statement statement = transaction.getConnection().createStatement();
+        // stream the rows instead of loading all of them at once
+        statement.setFetchSize(10000);
+        ResultSet result = statement.executeQuery(sql);
+        while (result.next()) {
+            String addressHash = result.getString(2);
+            if (addressHash != null) {
+                this.owners.put(addressHash.trim(), new Owner(type, result.getInt(1)));
+            }
+        }
+        result.close();
+        statement.close();
+    }
+
+    public void put(String addressHash, OwnerType type, Integer id) {
+        if (addressHash == null) {
+            return;
+        }
+        // an invoice is never replaced by a watching address for the same address
+        if (type == OwnerType.WATCHING_ADDRESS) {
+            this.owners.putIfAbsent(addressHash.trim(), new Owner(type, id));
+        } else {
+            this.owners.put(addressHash.trim(), new Owner(type, id));
+        }
+    }
+
+    /**
+     * @return the owner of the address or null if it is not ours
+     */
+    public Owner ownerOf(String addressHash) {
+        if (addressHash == null) {
+            return null;
+        }
+        return this.owners.get(addressHash);
+    }
+
+    public boolean contains(String addressHash) {
+        return addressHash != null && this.owners.containsKey(addressHash);
+    }
+
+    public int size() {
+        return this.owners.size();
+    }
+}
@@ -0,0 +1,151 @@
+package pfennig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.wallet.KeyChain;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * a pool of pre-derived receive addresses for new invoices.
+ *
+ * deriving a fresh address takes the wallet lock and may recalculate the bloom filter, so it is done in batches
+ * by a background task whenever the pool drops below half of its size. taking an address only polls the queue.
+ * if the pool runs empty an address is derived right away.
+ *
+ * addresses left in the pool on shutdown are never handed out. they are issued keys of the wallet though and
+ * still watched, so payments to them are not lost.
+ */
+public class AddressPool {
+    static Logger logger = LoggerFactory.getLogger(AddressPool.class.getName());
+
+    private Wallet wallet;
+    private NetworkParameters params;
+    private WalletJournal walletJournal;
+    private int size;
+
+    private LinkedBlockingQueue<String> addresses = new LinkedBlockingQueue<String>();
+    private ExecutorService refiller;
+    private AtomicBoolean refillQueued = new AtomicBoolean();
+
+    private volatile long lastRefillDuration = 0; // in milliseconds
+    private volatile int lastRefillCount = 0;
+    private AtomicLong misses = new AtomicLong();
+
+    public AddressPool(Wallet wallet, NetworkParameters params, int size, WalletJournal walletJournal) {
+        this.wallet = wallet;
+        this.params = params;
+        this.walletJournal = walletJournal;
+        this.size = size;
+        this.refiller = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("address-pool-refiller").setDaemon(true).build());
+    }
+
+    public void start() {
+        this.refillInBackground();
+    }
+
+    public void stop() throws InterruptedException {
+        this.refiller.shutdown();
+        this.refiller.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the next unused receive address
+     */
+    public String take() {
+        String address = this.addresses.poll();
+        if (this.addresses.size() < this.size / 2) {
+            this.refillInBackground();
+        }
+        if (address == null) {
+            this.misses.incrementAndGet();
+            logger.warn("address pool is empty, deriving address on request");
+            address = this.wallet.freshReceiveAddress().toString();
+            this.walletJournal.recordIssuedKeys();
+        }
+        return address;
+    }
+
+    /**
+     * takes count addresses at once. addresses missing from the pool are derived with a single wallet lock
+     *
+     * @return count unused receive addresses
+     */
+    public List<String> take(int count) {
+        List<String> taken = new ArrayList<String>(count);
+        this.addresses.drainTo(taken, count);
+        int missing = count - taken.size();
+        if (missing > 0) {
+            this.misses.addAndGet(missing);
+            logger.warn("address pool has too few addresses, deriving {} addresses on request", missing);
+            for (DeterministicKey key : this.wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, missing)) {
+                taken.add(key.toAddress(this.params).toString());
+            }
+            this.walletJournal.recordIssuedKeys();
+        }
+        if (this.addresses.size() < this.size / 2) {
+            this.refillInBackground();
+        }
+        return taken;
+    }
+
+    void refillInBackground() {
+        if (this.refillQueued.compareAndSet(false, true)) {
+            this.refiller.execute(() -> {
+                this.refillQueued.set(false);
+                this.refill();
+            });
+        }
+    }
+
+    void refill() {
+        int missing = this.size - this.addresses.size();
+        if (missing <= 0) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            // freshKeys derives all keys with a single wallet lock
+            List<DeterministicKey> keys = this.wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, missing);
+            this.walletJournal.recordIssuedKeys();
+            for (DeterministicKey key : keys) {
+                this.addresses.add(key.toAddress(this.params).toString());
+            }
+            this.lastRefillDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            this.lastRefillCount = keys.size();
+            logger.info("derived {} addresses for the address pool in {}ms", keys.size(), this.lastRefillDuration);
+        } catch (Exception e) {
+            logger.error("failed to refill address pool: {}", e.getMessage());
+        }
+    }
+
+    public int getDepth() {
+        return this.addresses.size();
+    }
+
+    /**
+     * @return pool depth, size, duration and number of addresses of the last refill and the number of addresses derived on request
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("depth", this.getDepth());
+        stats.put("size", this.size);
+        stats.put("lastRefillDuration", this.lastRefillDuration);
+        stats.put("lastRefillCount", this.lastRefillCount);
+        stats.put("misses", this.misses.get());
+        return stats;
+    }
+}
@@ -1,29 +1,54 @@
 package pfennig;
 
 import static spark.Spark.before;
-import static spark.Spark.get;
-import static spark.Spark.post;
+import static spark.Spark.halt;
 import static spark.SparkBase.setPort;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+import javax.persistence.PersistenceException;
 
 import org.bitcoinj.utils.Fiat;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import spark.QueryParamsMap;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import spark.Spark;
 
 import com.avaje.ebean.EbeanServer;
 import com.avaje.ebean.EbeanServerFactory;
 import com.avaje.ebean.config.DataSourceConfig;
 import com.avaje.ebean.config.ServerConfig;
+import com.avaje.ebeaninternal.server.lib.sql.DataSourceGlobalManager;
+import com.avaje.ebeaninternal.server.lib.sql.DataSourcePool;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
 
 public class App {
+    static final int MAX_PAGE_SIZE = 1000;
 
     public static void main(String[] args) throws Exception {
         Logger logger = LoggerFactory.getLogger(App.class.getName());
@@ -34,21 +59,37 @@ public class App {
         if (databaseUrl == null) {
             databaseUrl = "postgresql://postgres:@localhost:5432/pfennig";
         }
-        logger.info("connecting to DB: " + databaseUrl);
+        logger.info("connecting to DB: {}", databaseUrl);
 
         boolean ddlRun = System.getenv("DATABASE_DDL_RUN") != null && System.getenv("DATABASE_DDL_RUN").equals("1");
         EbeanServer ebeanServer = createEbeanServerFromUrl(databaseUrl, ddlRun);
+        Migrations migrations = new Migrations(ebeanServer);
+        if (ddlRun) {
+            migrations.reset();
+        }
+        migrations.migrate();
         Invoice.databaseConnnection = ebeanServer;
         WatchingAddress.databaseConnnection = ebeanServer;
         Payment.databaseConnnection = ebeanServer;
+        Notification.databaseConnnection = ebeanServer;
 
-        PriceCalculator.init();
+        // loaded before the wallet is started, payments may arrive while the chain is downloaded
+        AddressIndex addressIndex = new AddressIndex();
+        addressIndex.load(ebeanServer);
+        AddressIndex.instance = addressIndex;
+
+        Tracer tracer = new Tracer(intFromEnv("TRACE_BUFFER_SIZE", 10000));
+        if (System.getenv("TRACE_FILE") != null) {
+            logger.info("writing traces to {}", System.getenv("TRACE_FILE"));
+            tracer.flushTo(new File(System.getenv("TRACE_FILE")));
+        }
+        Tracer.instance = tracer;
 
         String environment = System.getenv("BITCOIN_NETWORK");
         if (environment == null) {
             environment = "org.bitcoin.test";
         }
-        logger.info("using network " + environment);
+        logger.info("using network {}", environment);
         
         String localhost = System.getenv("USE_BITCOIND");
         boolean useLocalhost = localhost != null && localhost.equals("1");
@@ -57,13 +98,27 @@ public class App {
         if (walletPath == null) {
             walletPath = "./wallets/main.wallet";
         }
-        logger.info("loading wallet from: " + walletPath);
+        logger.info("loading wallet from: {}", walletPath);
 
         String rootDir = System.getenv("ROOT_DIR");
         if (rootDir == null) {
             rootDir = "./";
         }
-        logger.info("using root directory: " + rootDir);
+        logger.info("using root directory: {}", rootDir);
+
+        String currencies = System.getenv("CURRENCIES");
+        if (currencies == null) {
+            currencies = "EUR,USD";
+        }
+        String exchange = System.getenv("EXCHANGE");
+        if (exchange == null) {
+            exchange = "kraken";
+        }
+        logger.info("using exchange rates of {} for {}", exchange, currencies);
+        PriceCalculator.init(Arrays.asList(currencies.toUpperCase().split("\\s*,\\s*")), exchange,
+                intFromEnv("EXCHANGE_RATE_REFRESH_INTERVAL", 300) * 1000L,
+                intFromEnv("EXCHANGE_RATE_MAX_AGE", 3600) * 1000L,
+                new File(rootDir, "exchange-rates.json"));
 
         long keyBirthday;
         if (System.getenv("WATCHING_KEY") == null) {
@@ -77,28 +132,136 @@ public class App {
         }
 
         final Treasury treasury = new Treasury(environment, new File(rootDir), useLocalhost);
+        treasury.setAddressPoolSize(intFromEnv("ADDRESS_POOL_SIZE", 20));
+        if (System.getenv("CONFIRMATIONS") != null) {
+            Invoice.defaultConfirmationThresholds = System.getenv("CONFIRMATIONS").replace(" ", "");
+        }
+        treasury.setPaymentQueue(intFromEnv("PAYMENT_QUEUE_SIZE", 10000), intFromEnv("PAYMENT_BATCH_SIZE", 500));
+        treasury.setWalletSnapshotInterval(intFromEnv("WALLET_SNAPSHOT_INTERVAL", 300) * 1000L);
         treasury.loadWalletFromFileOrWatchingKey(watchingKey, new File(walletPath), keyBirthday);
-        treasury.start();
+        // published before start(): the ingestor and the confirmation tracker already render payments during the initial chain download
         Treasury.instance = treasury;
+        treasury.start();
 
         Utils.HMAC_KEY = System.getenv("API_KEY");
 
+        String referenceHeightUrls = System.getenv("REFERENCE_HEIGHT_URLS");
+        if (referenceHeightUrls == null) {
+            referenceHeightUrls = "https://blockchain.info/latestblock";
+        }
+        ChainHeightPoller chainHeightPoller = new ChainHeightPoller(Arrays.asList(referenceHeightUrls.split("\\s*,\\s*")), intFromEnv("REFERENCE_HEIGHT_INTERVAL", 60) * 1000L);
+        chainHeightPoller.start();
+
+        NotificationClient notificationClient = new NotificationClient(
+                intFromEnv("NOTIFICATION_CONNECT_TIMEOUT", 5000),
+                intFromEnv("NOTIFICATION_READ_TIMEOUT", 10000));
+        NotificationDispatcher dispatcher = new NotificationDispatcher(ebeanServer, notificationClient,
+                intFromEnv("NOTIFICATION_WORKERS", 4),
+                intFromEnv("NOTIFICATION_HOST_CONCURRENCY", 2),
+                intFromEnv("NOTIFICATION_MAX_ATTEMPTS", 10));
+        dispatcher.start();
+        NotificationDispatcher.instance = dispatcher;
+
+        InvoiceEvents invoiceEvents = new InvoiceEvents(intFromEnv("INVOICE_EVENTS_MAX_CONNECTIONS", 10000));
+        invoiceEvents.start();
+        InvoiceEvents.instance = invoiceEvents;
+
+        Assets assets = new Assets();
+        CheckoutPage checkoutPage = new CheckoutPage(assets);
+        QrCodes qrCodes = new QrCodes(intFromEnv("QR_CACHE_SIZE", 1000));
+
+        DataSourcePool dataSource = DataSourceGlobalManager.getDataSource(ebeanServer.getName());
+        Metrics.gauge("pfennig_db_connections", "database connections by state", () -> dataSource.getStatus(false).getBusy(), "state", "busy");
+        Metrics.gauge("pfennig_db_connections", "database connections by state", () -> dataSource.getStatus(false).getFree(), "state", "free");
+        Metrics.gauge("pfennig_db_connections", "database connections by state", () -> dataSource.getStatus(false).getWaiting(), "state", "waiting");
+        Metrics.gauge("pfennig_chain_height", "best chain height", treasury::getChainHeight);
+        Metrics.gauge("pfennig_peers", "connected peers", treasury::getPeerCount);
+        Metrics.gauge("pfennig_address_pool_depth", "pre-derived receive addresses", treasury.addressPool::getDepth);
+        Metrics.gauge("pfennig_invoice_event_connections", "open invoice event streams",
+                () -> ((Number) invoiceEvents.getStats().get("connections")).doubleValue());
+        Iterator<Appender<ILoggingEvent>> appenders = ((LoggerContext) LoggerFactory.getILoggerFactory()).getLogger(Logger.ROOT_LOGGER_NAME).iteratorForAppenders();
+        while (appenders.hasNext()) {
+            Appender<ILoggingEvent> appender = appenders.next();
+            if (appender instanceof AsyncAppender) {
+                AsyncAppender async = (AsyncAppender) appender;
+                Metrics.gauge("pfennig_log_queue_remaining", "remaining capacity of the asynchronous log appenders", async::getRemainingCapacity,
+                        "appender", async.getName());
+            }
+        }
+
         String port = System.getenv("PORT");
         if (port != null) {
             setPort(Integer.parseInt(port));
         }
 
+        // logs 1 of every ACCESS_LOG_SAMPLE requests, 0 turns the access log off
+        int accessLogSample = intFromEnv("ACCESS_LOG_SAMPLE", 1);
+        Logger accessLogger = LoggerFactory.getLogger("pfennig.access");
         before("/*", (request, response) -> {
-            logger.info(request.requestMethod() + " " + request.pathInfo() + " ip=" + request.ip() + " real ip: " + request.headers("X-Real-IP"));
+            if (accessLogSample > 0 && accessLogger.isInfoEnabled()
+                    && (accessLogSample == 1 || ThreadLocalRandom.current().nextInt(accessLogSample) == 0)) {
+                accessLogger.info("{} {} ip={} real ip: {}", request.requestMethod(), request.pathInfo(), request.ip(), request.headers("X-Real-IP"));
+            }
         });
 
+        // listing and exporting return all invoices, not only the ones the caller knows the identifier of
+        before("/api/invoices", (request, response) -> {
+            if (request.queryParams("identifiers") == null && request.queryParams("orderIds") == null) {
+                App.requireApiKey(request, response);
+            }
+        });
+        before("/api/invoices/export", App::requireApiKey);
+        // traces contain transaction and address hashes of all payments
+        before("/admin/*", App::requireApiKey);
+        // the notification hosts of all merchants
+        before("/api/notifications/hosts", App::requireApiKey);
+
         get("/", (req, res) -> {
             res.type("application/json");
 
-            int chainDiff = Math.abs(treasury.getChainHeight() - Utils.chainHeightFromBlockChainInfo());
-            String inSync = (chainDiff < 2) ? "true" : "false";
+            int chainHeight = treasury.getChainHeight();
+            ChainHeightPoller.Reading reference = chainHeightPoller.getReading();
+            JSONObject status = new JSONObject();
+            status.put("environment", treasury.environment);
+            // BestChainHeight, heightDiff and inSync as before: a string and, while the reference height is unknown (0),
+            // the difference to 0 and false
+            status.put("BestChainHeight", String.valueOf(chainHeight));
+            status.put("ChainHead", treasury.getChainHeadHashAsString());
+            status.put("peers", treasury.getPeerCount());
+            int heightDiff = Math.abs(reference.height - chainHeight);
+            status.put("heightDiff", heightDiff);
+            status.put("inSync", heightDiff < 2);
+            if (reference.height > 0) {
+                status.put("referenceHeight", reference.height);
+                status.put("referenceHeightUpdatedAt", reference.updatedAt);
+                status.put("syncLag", reference.height - chainHeight);
+            }
 
-            return "{\"environment\": \"" + treasury.environment + "\", \"BestChainHeight\": \"" + treasury.getChainHeight() + "\", \"ChainHead\": \"" + treasury.getChainHeadHashAsString() + "\", \"heightDiff\": " + chainDiff + ", \"inSync\": " + inSync + ", \"time\": " + new java.util.Date().getTime() + "}";
+            DataSourcePool.Status pool = DataSourceGlobalManager.getDataSource(ebeanServer.getName()).getStatus(false);
+            JSONObject database = new JSONObject();
+            database.put("free", pool.getFree());
+            database.put("busy", pool.getBusy());
+            database.put("waiting", pool.getWaiting());
+            database.put("maxSize", pool.getMaxSize());
+            database.put("highWaterMark", pool.getHighWaterMark());
+            status.put("database", database);
+
+            status.put("addressPool", treasury.addressPool.getStats());
+            status.put("indexedAddresses", AddressIndex.instance.size());
+            status.put("paymentIngestor", treasury.paymentIngestor.getStats());
+            status.put("confirmationTracker", treasury.confirmationTracker.getStats());
+            status.put("invoiceEvents", invoiceEvents.getStats());
+            status.put("qrCodes", qrCodes.getStats());
+            status.put("tracer", tracer.getStats());
+
+            status.put("time", new java.util.Date().getTime());
+            return status.toJSONString();
+        });
+
+        // prometheus text format
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.render();
         });
 
         post("/api/invoices", (req, res) -> {
@@ -107,16 +270,43 @@ public class App {
                 res.status(422);
                 return "";
             }
-            Invoice invoice = Invoice.fromQueryMap(invoiceParams);
+            res.type("application/json");
+            Invoice invoice;
+            try {
+                invoice = Invoice.fromQueryMap(invoiceParams);
+            } catch (StaleExchangeRateException e) {
+                logger.error("refusing invoice: {}", e.getMessage());
+                res.status(503);
+                JSONObject error = new JSONObject();
+                error.put("error", "exchange rate unavailable. please try again later");
+                return error.toJSONString();
+            }
+            if (invoice.getOrderId() != null && Invoice.findByOrderId(invoice.getOrderId()) != null) {
+                res.status(422);
+                JSONObject error = new JSONObject();
+                error.put("error", "an invoice with this orderId already exists");
+                return error.toJSONString();
+            }
 
             invoice.setAddressHash(treasury.freshReceiveAddress());
 
-            res.type("application/json");
-            if (invoice.save()) {
-                logger.info("invoice created: " + invoice.getIdentifier());
+            boolean saved;
+            try {
+                saved = invoice.save();
+            } catch (PersistenceException e) {
+                if (!Invoice.isDuplicateOrderId(e)) {
+                    throw e;
+                }
+                res.status(422);
+                JSONObject error = new JSONObject();
+                error.put("error", "an invoice with this orderId already exists");
+                return error.toJSONString();
+            }
+            if (saved) {
+                logger.info("invoice created: {}", invoice.getIdentifier());
                 return invoice.toJson();
             } else {
-                logger.info("failed to save invoice: " + invoice.getViolations().toString());
+                logger.info("failed to save invoice: {}", invoice.getViolations());
                 res.status(422);
                 JSONObject error = new JSONObject();
                 error.put("error", "invalid input. please check our params");
@@ -125,6 +315,178 @@ public class App {
             }
         });
         
+        // body: {"invoices": [{"price": 100, "currency": "EUR", "orderId": "...", ...}, ...]}
+        post("/api/invoices/batch", (req, res) -> {
+            res.type("application/json");
+            Object body = JSONValue.parse(req.body());
+            Object specs = body instanceof Map ? ((Map) body).get("invoices") : body;
+            if (!(specs instanceof List) || ((List) specs).isEmpty() || ((List) specs).size() > MAX_PAGE_SIZE) {
+                res.status(422);
+                JSONObject error = new JSONObject();
+                error.put("error", "expected a list of 1 to " + MAX_PAGE_SIZE + " invoices");
+                return error.toJSONString();
+            }
+
+            // all invoices are priced with the same rates
+            PriceCalculator.Snapshot rates = PriceCalculator.getSnapshot();
+            List<Invoice> invoices = new LinkedList<Invoice>();
+            List<String> orderIds = new LinkedList<String>();
+            try {
+                for (Object spec : (List) specs) {
+                    Invoice invoice = Invoice.fromJson(spec instanceof Map ? (Map) spec : new JSONObject(), rates);
+                    invoices.add(invoice);
+                    if (invoice.getOrderId() != null) {
+                        orderIds.add(invoice.getOrderId());
+                    }
+                }
+            } catch (StaleExchangeRateException e) {
+                logger.error("refusing invoices: {}", e.getMessage());
+                res.status(503);
+                JSONObject error = new JSONObject();
+                error.put("error", "exchange rate unavailable. please try again later");
+                return error.toJSONString();
+            }
+
+            // nothing is written unless all invoices are valid
+            Set<String> takenOrderIds = new HashSet<String>();
+            for (Invoice existing : Invoice.findByOrderIds(orderIds)) {
+                takenOrderIds.add(existing.getOrderId());
+            }
+            LinkedList errors = new LinkedList();
+            int index = 0;
+            for (Invoice invoice : invoices) {
+                invoice.initialize();
+                if (!invoice.isValid()) {
+                    JSONObject error = new JSONObject();
+                    error.put("index", index);
+                    error.put("error", "invalid input. please check our params");
+                    error.put("fields", invoice.getViolations().toString());
+                    errors.add(error);
+                } else if (invoice.getOrderId() != null && !takenOrderIds.add(invoice.getOrderId())) {
+                    errors.add(App.duplicateOrderIdError(index, invoice.getOrderId()));
+                }
+                index++;
+            }
+            if (!errors.isEmpty()) {
+                res.status(422);
+                JSONObject result = new JSONObject();
+                result.put("errors", errors);
+                return result.toJSONString();
+            }
+
+            List<String> addresses = treasury.freshReceiveAddresses(invoices.size());
+            for (int i = 0; i < invoices.size(); i++) {
+                invoices.get(i).setAddressHash(addresses.get(i));
+            }
+            try {
+                Invoice.saveAll(invoices);
+            } catch (PersistenceException e) {
+                if (!Invoice.isDuplicateOrderId(e)) {
+                    throw e;
+                }
+                // an orderId got taken by another request since it was checked above
+                takenOrderIds.clear();
+                for (Invoice existing : Invoice.findByOrderIds(orderIds)) {
+                    takenOrderIds.add(existing.getOrderId());
+                }
+                index = 0;
+                for (Invoice invoice : invoices) {
+                    if (takenOrderIds.contains(invoice.getOrderId())) {
+                        errors.add(App.duplicateOrderIdError(index, invoice.getOrderId()));
+                    }
+                    index++;
+                }
+                res.status(422);
+                JSONObject result = new JSONObject();
+                result.put("errors", errors);
+                return result.toJSONString();
+            }
+            logger.info("created {} invoices", invoices.size());
+
+            LinkedList invoicesJSON = new LinkedList();
+            for (Invoice invoice : invoices) {
+                invoice.payments = new LinkedList<Payment>(); // new invoices have no payments, skip the query
+                invoicesJSON.add(invoice.toJsonObject());
+            }
+            JSONObject result = new JSONObject();
+            result.put("invoices", invoicesJSON);
+            return result.toJSONString();
+        });
+
+        get("/api/invoices", (req, res) -> {
+            res.type("application/json");
+            // multi-get: ?identifiers=a,b,c or ?orderIds=a,b,c
+            if (req.queryParams("identifiers") != null || req.queryParams("orderIds") != null) {
+                boolean byOrderId = req.queryParams("identifiers") == null;
+                List<String> values = App.listParam(req.queryParams(byOrderId ? "orderIds" : "identifiers"));
+                if (values.size() > MAX_PAGE_SIZE) {
+                    res.status(422);
+                    JSONObject error = new JSONObject();
+                    error.put("error", "at most " + MAX_PAGE_SIZE + " invoices can be requested at once");
+                    return error.toJSONString();
+                }
+                List<Invoice> invoices = byOrderId ? Invoice.findByOrderIds(values) : Invoice.findByIdentifiers(values);
+                LinkedList invoicesJSON = new LinkedList();
+                Set<String> missing = new LinkedHashSet<String>(values);
+                for (Invoice invoice : invoices) {
+                    invoicesJSON.add(invoice.toJsonObject());
+                    missing.remove(byOrderId ? invoice.getOrderId() : invoice.getIdentifier());
+                }
+                JSONObject result = new JSONObject();
+                result.put("invoices", invoicesJSON);
+                result.put("missing", new LinkedList(missing));
+                return result.toJSONString();
+            }
+
+            Invoice after = null;
+            if (req.queryParams("cursor") != null) {
+                after = Invoice.fromCursor(req.queryParams("cursor"));
+                if (after == null) {
+                    res.status(422);
+                    JSONObject error = new JSONObject();
+                    error.put("error", "invalid cursor");
+                    return error.toJSONString();
+                }
+            }
+            int limit = Math.max(1, Math.min(MAX_PAGE_SIZE, App.intParam(req.queryParams("limit"), 100)));
+            List<Invoice> invoices = Invoice.findPage(req.queryParams("status"), App.timestampParam(req.queryParams("since")),
+                    App.timestampParam(req.queryParams("until")), after, limit);
+
+            LinkedList invoicesJSON = new LinkedList();
+            for (Invoice invoice : invoices) {
+                invoicesJSON.add(invoice.toJsonObject());
+            }
+            JSONObject page = new JSONObject();
+            page.put("invoices", invoicesJSON);
+            // a full page may have a next one
+            page.put("nextCursor", invoices.size() == limit ? invoices.get(invoices.size() - 1).getCursor() : null);
+            return page.toJSONString();
+        });
+
+        // registered before /api/invoices/:identifier which would match it otherwise
+        get("/api/invoices/export", (req, res) -> {
+            InvoiceExport export = new InvoiceExport(ebeanServer, req.queryParams("status"),
+                    App.timestampParam(req.queryParams("since")), App.timestampParam(req.queryParams("until")));
+            res.type("application/x-ndjson");
+            boolean gzip = Utils.acceptsGzip(req.headers("Accept-Encoding"));
+            if (gzip) {
+                res.header("Content-Encoding", "gzip");
+            }
+            try {
+                OutputStream out = res.raw().getOutputStream();
+                if (gzip) {
+                    out = new GZIPOutputStream(out, 8192);
+                }
+                export.writeTo(out);
+                out.close();
+            } catch (Exception e) {
+                // the status is sent already, the client sees a truncated stream
+                logger.error("invoice export failed: {}", e.getMessage());
+            }
+            // the response is committed, spark does not write the returned body
+            return "";
+        });
+
         get("/api/invoices/:identifier", (req, res) -> {
             Invoice invoice = Invoice.findByIdentifier(req.params("identifier"));
             res.type("application/json");
@@ -148,6 +510,34 @@ public class App {
             }
         });
 
+        // server-sent events with the invoice state, sent on subscribe and whenever a payment is seen or confirmed
+        get("/api/invoices/:identifier/events", (req, res) -> {
+            Invoice invoice = Invoice.findByIdentifier(req.params("identifier"));
+            if (invoice == null) {
+                res.status(404);
+                return "";
+            }
+            if (!invoiceEvents.subscribe(invoice, req.raw(), res.raw())) {
+                res.status(503);
+                return "";
+            }
+            // the response is committed and kept open, spark does not write the returned body
+            return "";
+        });
+
+        // redirects to the content address of the QR code of the payment URI, which changes with the missing amount
+        get("/api/invoices/:identifier/qr", (req, res) -> {
+            Invoice invoice = Invoice.findByIdentifier(req.params("identifier"));
+            if (invoice == null) {
+                res.status(404);
+                return "";
+            }
+            String format = "svg".equals(req.queryParams("format")) ? "svg" : "png";
+            res.header("Cache-Control", "no-cache");
+            res.redirect(QrCodes.pathOf(invoice, format));
+            return "";
+        });
+
         get("/api/invoices/:identifier/payments", (req, res) -> {
             Invoice invoice = Invoice.findByIdentifier(req.params("identifier"));
 
@@ -196,6 +586,72 @@ public class App {
             }
         });
 
+        get("/pay/:identifier", (req, res) -> {
+            Invoice invoice = Invoice.findByIdentifier(req.params("identifier"));
+            res.type("text/html; charset=utf-8");
+            res.header("Cache-Control", "no-cache");
+            if (invoice == null) {
+                res.status(404);
+                return checkoutPage.renderNotFound();
+            }
+            return checkoutPage.render(invoice);
+        });
+
+        get("/assets/:file", (req, res) -> {
+            try {
+                if (assets.serve(req.params("file"), req.headers("Accept-Encoding"), req.headers("If-None-Match"), res.raw())) {
+                    // the response is committed, spark does not write the returned body
+                    return "";
+                }
+            } catch (IOException e) {
+                logger.error("failed to serve asset {}: {}", req.params("file"), e.getMessage());
+                return "";
+            }
+            res.status(404);
+            return checkoutPage.renderNotFound();
+        });
+
+        get("/qr/:identifier/:file", (req, res) -> {
+            try {
+                if (qrCodes.serve(req.params("identifier"), req.params("file"), req.headers("If-None-Match"), res.raw())) {
+                    // the response is committed, spark does not write the returned body
+                    return "";
+                }
+            } catch (Exception e) {
+                logger.error("failed to render qr code {}: {}", req.params("file"), e.getMessage());
+                res.status(500);
+                return "";
+            }
+            res.status(404);
+            return "";
+        });
+
+        // the stages of the most recently seen transactions
+        get("/admin/traces", (req, res) -> {
+            res.type("application/json");
+            int limit = Math.max(1, Math.min(MAX_PAGE_SIZE, App.intParam(req.queryParams("limit"), 20)));
+            JSONArray traces = new JSONArray();
+            for (Map.Entry<String, List<Tracer.Span>> trace : tracer.recent(limit).entrySet()) {
+                traces.add(Tracer.toJson(trace.getKey(), trace.getValue()));
+            }
+            return traces.toJSONString();
+        });
+
+        get("/admin/traces/:transactionHash", (req, res) -> {
+            res.type("application/json");
+            List<Tracer.Span> spans = tracer.find(req.params("transactionHash"));
+            if (spans.isEmpty()) {
+                res.status(404);
+                return "{}";
+            }
+            return Tracer.toJson(req.params("transactionHash"), spans).toJSONString();
+        });
+
+        get("/api/notifications/hosts", (req, res) -> {
+            res.type("application/json");
+            return JSONValue.toJSONString(notificationClient.getHostStats());
+        });
+
         get("/api/price", (req, res) -> {
             String currency = req.queryParams("currency");
             if (currency == null) {
@@ -208,17 +664,110 @@ public class App {
             else {
                 satoshi = Long.parseLong(req.queryParams("satoshi"));
             }
-            Fiat fiat = PriceCalculator.forCurrency(currency).coinToFiat(satoshi);
+            res.type("application/json");
+            if (!PriceCalculator.isSupported(currency)) {
+                res.status(422);
+                JSONObject error = new JSONObject();
+                error.put("error", "unsupported currency");
+                return error.toJSONString();
+            }
+            Fiat fiat;
+            try {
+                fiat = PriceCalculator.forCurrency(currency).coinToFiat(satoshi);
+            } catch (IllegalStateException e) {
+                res.status(503);
+                JSONObject error = new JSONObject();
+                error.put("error", "exchange rate unavailable. please try again later");
+                return error.toJSONString();
+            }
             JSONObject price = new JSONObject();
             price.put("satoshi", satoshi);
             price.put("value", fiat.value);
             price.put(fiat.currencyCode, fiat.toPlainString());
             price.put("btc", fiat.toFriendlyString());
+            price.put("updatedAt", PriceCalculator.forCurrency(currency).getUpdatedAt());
             return price.toJSONString();
         });
     }
 
-    private static EbeanServer createEbeanServerFromUrl(String url, boolean ddlRun) throws Exception {
+    /**
+     * @return the error of an invoice in a batch whose orderId is taken
+     */
+    private static JSONObject duplicateOrderIdError(int index, String orderId) {
+        JSONObject error = new JSONObject();
+        error.put("index", index);
+        error.put("orderId", orderId);
+        error.put("error", "an invoice with this orderId already exists");
+        return error;
+    }
+
+    /**
+     * @return the non-empty values of a comma separated parameter
+     */
+    private static List<String> listParam(String value) {
+        List<String> values = new LinkedList<String>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
+    private static int intParam(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param value - milliseconds since epoch
+     */
+    private static Timestamp timestampParam(String value) {
+        try {
+            return value == null ? null : new Timestamp(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * halts with 401 unless the request is authorized with the API_KEY, see Utils.isAuthorized
+     */
+    private static void requireApiKey(Request request, Response response) {
+        if (!Utils.isAuthorized(request.headers("Authorization"))) {
+            response.type("application/json");
+            JSONObject error = new JSONObject();
+            error.put("error", "unauthorized, please send the API_KEY as bearer token");
+            halt(401, error.toJSONString());
+        }
+    }
+
+    /**
+     * registers a GET route. its duration is recorded per route, see Metrics.timed
+     */
+    private static void get(String path, Route route) {
+        Spark.get(path, Metrics.timed("GET", path, route));
+    }
+
+    /**
+     * registers a POST route. its duration is recorded per route, see Metrics.timed
+     */
+    private static void post(String path, Route route) {
+        Spark.post(path, Metrics.timed("POST", path, route));
+    }
+
+    static int intFromEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    static EbeanServer createEbeanServerFromUrl(String url, boolean ddlRun) throws Exception {
         URI dbUri = new URI(url);
         String dbUsername = null;
         String dbPassword = null;
@@ -253,6 +802,7 @@ public class App {
         config.addClass(Invoice.class);
         config.addClass(WatchingAddress.class);
         config.addClass(Payment.class);
+        config.addClass(Notification.class);
 
         return EbeanServerFactory.create(config);
     }
@@ -0,0 +1,154 @@
+package pfennig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+/**
+ * the static assets of the checkout page, loaded from /public/assets once at startup.
+ *
+ * every asset is served under a fingerprinted name (e.g. jquery.min.3f2a9c81d0.js) that changes with its content,
+ * thus it can be cached forever. a gzipped variant is compressed once at startup instead of on every request, it has
+ * its own ETag since caches store both variants (Vary: Accept-Encoding).
+ */
+public class Assets {
+    static Logger logger = LoggerFactory.getLogger(Assets.class.getName());
+    static final String[] ASSETS = { "jquery.min.js" };
+    static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    /**
+     * an asset with its content and gzipped content
+     */
+    public static class Asset {
+        public final String path;
+        public final String contentType;
+        public final String etag;
+        public final String gzippedEtag;
+        public final byte[] content;
+        public final byte[] gzipped;
+
+        Asset(String path, String contentType, String fingerprint, byte[] content, byte[] gzipped) {
+            this.path = path;
+            this.contentType = contentType;
+            this.etag = "\"" + fingerprint + "\"";
+            this.gzippedEtag = "\"" + fingerprint + "-gz\"";
+            this.content = content;
+            this.gzipped = gzipped;
+        }
+    }
+
+    // by file name
+    private Map<String, Asset> assets = new HashMap<String, Asset>();
+    // by fingerprinted file name
+    private Map<String, Asset> fingerprinted = new HashMap<String, Asset>();
+
+    public Assets() throws IOException, NoSuchAlgorithmException {
+        for (String name : ASSETS) {
+            InputStream in = Assets.class.getResourceAsStream("/public/assets/" + name);
+            if (in == null) {
+                throw new IOException("missing asset " + name);
+            }
+            byte[] content = ByteStreams.toByteArray(in);
+            in.close();
+
+            String fingerprint = BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(content)).substring(0, 10);
+            int extension = name.lastIndexOf('.');
+            String fingerprintedName = name.substring(0, extension) + "." + fingerprint + name.substring(extension);
+
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+            gzip.write(content);
+            gzip.close();
+
+            Asset asset = new Asset("/assets/" + fingerprintedName, Assets.contentTypeOf(name), fingerprint, content, gzipped.toByteArray());
+            this.assets.put(name, asset);
+            this.fingerprinted.put(fingerprintedName, asset);
+            logger.debug("asset {} served as {}", name, asset.path);
+        }
+    }
+
+    private static String contentTypeOf(String name) {
+        if (name.endsWith(".js")) {
+            return "application/javascript; charset=utf-8";
+        }
+        if (name.endsWith(".css")) {
+            return "text/css; charset=utf-8";
+        }
+        return "application/octet-stream";
+    }
+
+    /**
+     * @return the fingerprinted path of an asset, to be used in templates
+     */
+    public String pathOf(String name) {
+        return this.assets.get(name).path;
+    }
+
+    /**
+     * writes the asset. fingerprinted names are cached forever, plain names only for a few minutes
+     *
+     * @return false if there is no such asset
+     */
+    public boolean serve(String name, String acceptEncoding, String ifNoneMatch, HttpServletResponse response) throws IOException {
+        Asset asset = this.fingerprinted.get(name);
+        boolean immutable = asset != null;
+        if (asset == null) {
+            asset = this.assets.get(name);
+        }
+        if (asset == null) {
+            return false;
+        }
+        boolean gzip = Utils.acceptsGzip(acceptEncoding);
+        String etag = gzip ? asset.gzippedEtag : asset.etag;
+        response.setHeader("Cache-Control", immutable ? IMMUTABLE : "public, max-age=300");
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (Assets.matches(ifNoneMatch, etag)) {
+            response.setStatus(304);
+            response.flushBuffer();
+            return true;
+        }
+        response.setContentType(asset.contentType);
+        byte[] body = asset.content;
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = asset.gzipped;
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+        response.flushBuffer();
+        return true;
+    }
+
+    /**
+     * @param ifNoneMatch - the If-None-Match header, a list of ETags. may be null
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
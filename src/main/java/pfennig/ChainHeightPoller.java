@@ -0,0 +1,88 @@
+package pfennig;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.parser.JSONParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * polls the chain height from one or more reference sources (e.g. blockchain.info) in the background.
+ * the status endpoint only reads the cached result.
+ *
+ * a source may either respond with JSON containing a "height" attribute or with the plain height.
+ * the highest height reported by any source is used.
+ */
+public class ChainHeightPoller {
+    static Logger logger = LoggerFactory.getLogger(ChainHeightPoller.class.getName());
+
+    private List<String> sources;
+    private long interval; // in milliseconds
+    private ScheduledExecutorService scheduler;
+    private volatile Reading reading = new Reading(0, 0);
+
+    /**
+     * a reference height and the time it was fetched
+     */
+    public static class Reading {
+        public final int height;
+        public final long updatedAt;
+
+        Reading(int height, long updatedAt) {
+            this.height = height;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    public ChainHeightPoller(List<String> sources, long interval) {
+        this.sources = sources;
+        this.interval = interval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("chain-height-poller").setDaemon(true).build());
+    }
+
+    public void start() {
+        this.scheduler.scheduleWithFixedDelay(this::poll, 0, this.interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        this.scheduler.shutdown();
+    }
+
+    /**
+     * @return the last reference height. the height is 0 if no source could be reached yet
+     */
+    public Reading getReading() {
+        return this.reading;
+    }
+
+    void poll() {
+        int height = 0;
+        for (String source : this.sources) {
+            try {
+                height = Math.max(height, ChainHeightPoller.fetchHeight(source));
+            } catch (Exception e) {
+                logger.error("could not get chain height from {}: {}", source, e.getMessage());
+            }
+        }
+        if (height > 0) {
+            this.reading = new Reading(height, new java.util.Date().getTime());
+        }
+    }
+
+    static int fetchHeight(String source) throws Exception {
+        String response = HttpRequest.get(source).connectTimeout(5000).readTimeout(10000).body().trim();
+        logger.debug("chain height from {}: {}", source, response);
+        if (response.startsWith("{")) {
+            Map blockInfo = (Map) new JSONParser().parse(response);
+            return ((Long) blockInfo.get("height")).intValue();
+        }
+        return Integer.parseInt(response);
+    }
+}
@@ -0,0 +1,50 @@
+package pfennig;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheFactory;
+
+/**
+ * renders the hosted checkout page of an invoice. the templates are compiled once at startup.
+ */
+public class CheckoutPage {
+    private Assets assets;
+    private Mustache widget;
+    private Mustache notFound;
+
+    public CheckoutPage(Assets assets) {
+        this.assets = assets;
+        MustacheFactory factory = new DefaultMustacheFactory("templates");
+        this.widget = factory.compile("widget.mustache");
+        this.notFound = factory.compile("404.mustache");
+    }
+
+    public String render(Invoice invoice) {
+        Map<String, Object> scope = new HashMap<String, Object>();
+        scope.put("identifier", invoice.getIdentifier());
+        scope.put("description", invoice.getDescription());
+        scope.put("label", invoice.getLabel());
+        scope.put("address_hash", invoice.getAddressHash());
+        scope.put("price_in_btc", invoice.getBtcPrice());
+        scope.put("status", invoice.getStatus());
+        String paymentUri = invoice.getPaymentUri();
+        scope.put("payment_uri", paymentUri);
+        scope.put("qr_png", QrCodes.pathOf(invoice, "png"));
+        scope.put("jquery_js", this.assets.pathOf("jquery.min.js"));
+        return CheckoutPage.execute(this.widget, scope);
+    }
+
+    public String renderNotFound() {
+        return CheckoutPage.execute(this.notFound, new HashMap<String, Object>());
+    }
+
+    private static String execute(Mustache template, Map<String, Object> scope) {
+        StringWriter writer = new StringWriter();
+        template.execute(writer, scope);
+        return writer.toString();
+    }
+}
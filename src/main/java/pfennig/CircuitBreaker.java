@@ -0,0 +1,65 @@
+package pfennig;
+
+/**
+ * a simple circuit breaker for one notification host.
+ *
+ * after failureThreshold consecutive failures the circuit opens and requests to the host are paused for openTime.
+ * then a single trial request is let through (half open): if it succeeds the circuit closes again, otherwise it stays open.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openTime; // in milliseconds
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    public CircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    public synchronized boolean allowRequest() {
+        switch (this.state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (new java.util.Date().getTime() - this.openedAt >= this.openTime) {
+                this.state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        default:
+            // a trial request is already running
+            return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        this.state = State.CLOSED;
+        this.consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        this.consecutiveFailures++;
+        if (this.state == State.HALF_OPEN || this.consecutiveFailures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = new java.util.Date().getTime();
+        }
+    }
+
+    /**
+     * @return the time in milliseconds at which the next trial request is allowed
+     */
+    public synchronized long getRetryAt() {
+        return this.openedAt + this.openTime;
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+}
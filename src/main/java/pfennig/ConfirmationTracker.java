@@ -0,0 +1,522 @@
+package pfennig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.AbstractBlockChainListener;
+import org.bitcoinj.core.AbstractWalletEventListener;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.Wallet;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * confirms payments when the chain reaches the confirmation thresholds of their invoice.
+ *
+ * unconfirmed payments are kept in a min-heap keyed by the chain height at which their next threshold is reached.
+ * on every new best block the payments that are due are taken from the heap and written with one bulk update,
+ * then one notification per owner is queued in the same transaction.
+ *
+ * the heap is rebuilt from the database on start, so pending confirmations survive a restart. payments that have
+ * not been mined yet wait in a separate map until the wallet reports the block they appeared in.
+ *
+ * on a reorganization only the payments above the split point are read (using the height index), their heights
+ * are taken from the wallet and the ones that actually changed are corrected with one bulk update.
+ */
+public class ConfirmationTracker {
+    public static ConfirmationTracker instance;
+    static Logger logger = LoggerFactory.getLogger(ConfirmationTracker.class.getName());
+    static final Metrics.Histogram CONFIRMATION_LAG = Metrics.histogram("pfennig_confirmation_lag_seconds",
+            "time from a new block to the confirmations it caused being written");
+
+    private EbeanServer databaseConnnection;
+    private Wallet wallet;
+    private BlockChain blockChain;
+
+    // mined payments by the chain height their next threshold is reached at
+    private PriorityQueue<Pending> due = new PriorityQueue<Pending>((a, b) -> Integer.compare(a.targetHeight, b.targetHeight));
+    // payments that are not mined yet by transaction hash, a transaction may pay several of our addresses
+    private Map<String, List<Pending>> unmined = new HashMap<String, List<Pending>>();
+    // payments that got mined since the last check, their height is written with the next update
+    private List<Pending> mined = new ArrayList<Pending>();
+
+    // payments above the split point of a reorganization that is not processed yet
+    private Map<Integer, Pending> reorganized = new HashMap<Integer, Pending>();
+
+    private ExecutorService checker;
+    private AtomicBoolean checkQueued = new AtomicBoolean();
+    // System.nanoTime() when the oldest block not yet checked arrived, 0 if all blocks are checked
+    private AtomicLong blockSeenAt = new AtomicLong();
+    private volatile int checkedHeight = 0;
+
+    /**
+     * an unconfirmed payment
+     */
+    static class Pending {
+        final int id;
+        final String transactionHash;
+        final String addressHash;
+        final int[] thresholds;
+        Integer appearedAtChainHeight;
+        int notified; // number of thresholds notified
+        int targetHeight;
+
+        Pending(int id, String transactionHash, String addressHash, int[] thresholds, Integer appearedAtChainHeight, int confirmationsNotified) {
+            this.id = id;
+            this.transactionHash = transactionHash;
+            this.addressHash = addressHash;
+            this.thresholds = thresholds;
+            this.appearedAtChainHeight = appearedAtChainHeight;
+            while (this.notified < thresholds.length && thresholds[this.notified] <= confirmationsNotified) {
+                this.notified++;
+            }
+            this.updateTargetHeight();
+        }
+
+        boolean isConfirmed() {
+            return this.notified >= this.thresholds.length;
+        }
+
+        int getConfirmationsNotified() {
+            return this.notified == 0 ? 0 : this.thresholds[this.notified - 1];
+        }
+
+        /**
+         * the first block counts as one confirmation, so threshold n is reached at appearedAt + n - 1
+         */
+        void updateTargetHeight() {
+            if (this.appearedAtChainHeight != null && !this.isConfirmed()) {
+                this.targetHeight = this.appearedAtChainHeight + this.thresholds[this.notified] - 1;
+            }
+        }
+
+        Integer getNextConfirmationHeight() {
+            return this.appearedAtChainHeight == null || this.isConfirmed() ? null : this.targetHeight;
+        }
+    }
+
+    public ConfirmationTracker(EbeanServer databaseConnnection, Wallet wallet, BlockChain blockChain) {
+        this.databaseConnnection = databaseConnnection;
+        this.wallet = wallet;
+        this.blockChain = blockChain;
+        this.checker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("confirmation-tracker").setDaemon(true).build());
+    }
+
+    /**
+     * loads the unconfirmed payments and starts listening for new blocks
+     */
+    public void start() throws SQLException {
+        this.load();
+        this.wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, org.bitcoinj.core.Transaction tx) {
+                ConfirmationTracker.this.onConfidenceChanged(tx);
+            }
+        });
+        this.blockChain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                // the oldest block not yet checked
+                ConfirmationTracker.this.blockSeenAt.compareAndSet(0, System.nanoTime());
+                ConfirmationTracker.this.checkInBackground();
+            }
+        });
+        this.checkInBackground();
+    }
+
+    private void load() throws SQLException {
+        int loaded = 0;
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            Statement statement = transaction.getConnection().createStatement();
+            statement.setFetchSize(1000);
+            ResultSet result = statement.executeQuery("select p.id, p.transaction_hash, p.address_hash, p.appeared_at_chain_height, p.confirmations_notified, i.confirmation_thresholds"
+                    + " from payments p left join invoices i on i.address_hash = p.address_hash where p.confirmed_at is null");
+            List<Pending> pendings = new ArrayList<Pending>();
+            while (result.next()) {
+                Integer height = result.getObject(4) == null ? null : result.getInt(4);
+                pendings.add(new Pending(result.getInt(1), result.getString(2), result.getString(3),
+                        Invoice.parseConfirmationThresholds(result.getString(6)), height, result.getInt(5)));
+                loaded++;
+            }
+            result.close();
+            statement.close();
+            transaction.commit();
+            this.trackAll(pendings);
+        } finally {
+            transaction.end();
+        }
+        logger.info("tracking {} unconfirmed payments", loaded);
+    }
+
+    /**
+     * starts tracking a newly written payment
+     */
+    public void track(int id, String transactionHash, String addressHash, int[] thresholds, Integer appearedAtChainHeight) {
+        List<Pending> pendings = new ArrayList<Pending>();
+        pendings.add(new Pending(id, transactionHash, addressHash, thresholds, appearedAtChainHeight, 0));
+        this.trackAll(pendings);
+        this.checkInBackground();
+    }
+
+    private synchronized void trackAll(List<Pending> pendings) {
+        for (Pending pending : pendings) {
+            if (pending.isConfirmed()) {
+                continue;
+            }
+            if (pending.appearedAtChainHeight == null) {
+                // the transaction may have been mined before the payment was written
+                org.bitcoinj.core.Transaction tx = this.wallet.getTransaction(Sha256Hash.wrap(pending.transactionHash));
+                if (tx != null && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                    this.markAsMined(pending, tx.getConfidence().getAppearedAtChainHeight());
+                } else {
+                    this.addUnmined(pending);
+                }
+            } else {
+                this.due.add(pending);
+            }
+        }
+    }
+
+    private synchronized void onConfidenceChanged(org.bitcoinj.core.Transaction tx) {
+        if (this.unmined.isEmpty() || tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING) {
+            return;
+        }
+        List<Pending> pendings = this.unmined.remove(tx.getHashAsString());
+        if (pendings != null) {
+            for (Pending pending : pendings) {
+                this.markAsMined(pending, tx.getConfidence().getAppearedAtChainHeight());
+            }
+        }
+    }
+
+    private void addUnmined(Pending pending) {
+        this.unmined.computeIfAbsent(pending.transactionHash, hash -> new ArrayList<Pending>()).add(pending);
+    }
+
+    private void removeUnmined(Pending pending) {
+        List<Pending> pendings = this.unmined.get(pending.transactionHash);
+        if (pendings != null) {
+            pendings.removeIf(unmined -> unmined.id == pending.id);
+            if (pendings.isEmpty()) {
+                this.unmined.remove(pending.transactionHash);
+            }
+        }
+    }
+
+    private void markAsMined(Pending pending, int height) {
+        pending.appearedAtChainHeight = height;
+        pending.updateTargetHeight();
+        this.mined.add(pending);
+        this.due.add(pending);
+    }
+
+    void checkInBackground() {
+        if (this.checkQueued.compareAndSet(false, true)) {
+            this.checker.execute(() -> {
+                this.checkQueued.set(false);
+                long blockSeenAt = this.blockSeenAt.getAndSet(0);
+                try {
+                    this.check(this.blockChain.getBestChainHeight());
+                    if (blockSeenAt != 0) {
+                        CONFIRMATION_LAG.observeSince(blockSeenAt);
+                    }
+                } catch (Exception e) {
+                    logger.error("failed to update confirmations: {}", e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * confirms all payments that are due at the given height. if the update fails the payments are restored, so
+     * they are written with the check of the next block
+     */
+    void check(int height) throws SQLException {
+        long start = System.nanoTime();
+        Map<Integer, Pending> changed = new LinkedHashMap<Integer, Pending>();
+        Map<String, Pending> minedOwners = new LinkedHashMap<String, Pending>();
+        Map<String, Pending> confirmedOwners = new LinkedHashMap<String, Pending>();
+        List<Pending> mined;
+        // the number of thresholds notified before this check, to restore them if the update fails
+        Map<Pending, Integer> notified = new LinkedHashMap<Pending, Integer>();
+        synchronized (this) {
+            mined = new ArrayList<Pending>(this.mined);
+            for (Pending pending : mined) {
+                changed.put(pending.id, pending);
+                minedOwners.put(pending.addressHash, pending);
+            }
+            this.mined.clear();
+            while (!this.due.isEmpty() && this.due.peek().targetHeight <= height) {
+                Pending pending = this.due.poll();
+                notified.putIfAbsent(pending, pending.notified);
+                int confirmations = height - pending.appearedAtChainHeight + 1;
+                while (!pending.isConfirmed() && pending.thresholds[pending.notified] <= confirmations) {
+                    pending.notified++;
+                }
+                pending.updateTargetHeight();
+                if (!pending.isConfirmed()) {
+                    this.due.add(pending);
+                }
+                changed.put(pending.id, pending);
+                confirmedOwners.put(pending.addressHash, pending);
+            }
+        }
+        if (changed.isEmpty()) {
+            this.checkedHeight = height;
+            return;
+        }
+
+        Map<String, Payment> owners = new LinkedHashMap<String, Payment>();
+        boolean committed = false;
+        try {
+            Transaction transaction = this.databaseConnnection.beginTransaction();
+            try {
+                this.update(transaction.getConnection(), new ArrayList<Pending>(changed.values()));
+                for (String addressHash : minedOwners.keySet()) {
+                    owners.computeIfAbsent(addressHash, ConfirmationTracker::ownerOf).updateOwnerAggregates();
+                }
+                for (Map.Entry<String, Pending> confirmed : confirmedOwners.entrySet()) {
+                    Payment owner = owners.computeIfAbsent(confirmed.getKey(), ConfirmationTracker::ownerOf);
+                    owner.setTransactionHash(confirmed.getValue().transactionHash);
+                    owner.notifyConfirmed();
+                }
+                transaction.commit();
+                committed = true;
+            } finally {
+                transaction.end();
+            }
+        } finally {
+            if (!committed) {
+                this.restore(mined, notified);
+            }
+        }
+        this.checkedHeight = height;
+        long committedAt = System.nanoTime();
+        for (Pending pending : minedOwners.values()) {
+            Tracer.record(pending.transactionHash, "mined", "height " + pending.appearedAtChainHeight, start, committedAt);
+        }
+        for (Pending pending : confirmedOwners.values()) {
+            Tracer.record(pending.transactionHash, "confirmation", pending.getConfirmationsNotified() + " confirmations", start, committedAt);
+        }
+        NotificationDispatcher.wakeUp();
+        ConfirmationTracker.publish(owners);
+        logger.info("updated confirmations of {} payments at height {}", changed.size(), height);
+    }
+
+    /**
+     * undoes the changes of a check whose update failed
+     */
+    private synchronized void restore(List<Pending> mined, Map<Pending, Integer> notified) {
+        this.mined.addAll(mined);
+        for (Map.Entry<Pending, Integer> entry : notified.entrySet()) {
+            Pending pending = entry.getKey();
+            // a reorganization may have taken the payment from the heap meanwhile, it puts it back when done
+            boolean reorganized = this.reorganized.containsKey(pending.id);
+            if (!reorganized) {
+                this.due.remove(pending);
+            }
+            pending.notified = entry.getValue();
+            pending.updateTargetHeight();
+            if (!reorganized) {
+                this.due.add(pending);
+            }
+        }
+    }
+
+    /**
+     * called on the block chain thread when the chain reorganized. payments above the split point are held back
+     * from confirmation until their heights are corrected in the background
+     */
+    public void onReorganize(int splitHeight) {
+        synchronized (this) {
+            for (Iterator<Pending> it = this.due.iterator(); it.hasNext();) {
+                Pending pending = it.next();
+                if (pending.appearedAtChainHeight > splitHeight) {
+                    it.remove();
+                    this.reorganized.put(pending.id, pending);
+                }
+            }
+        }
+        this.checker.execute(() -> {
+            try {
+                this.reorganize(splitHeight);
+            } catch (Exception e) {
+                logger.error("failed to correct payments after reorganization at height {}: {}", splitHeight, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * corrects the heights and confirmation state of the payments that appeared above the split point
+     */
+    void reorganize(int splitHeight) throws SQLException {
+        int height = this.blockChain.getBestChainHeight();
+        List<Pending> changed = new ArrayList<Pending>();
+        Map<String, Payment> owners = new LinkedHashMap<String, Payment>();
+        int affected = 0;
+
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            PreparedStatement statement = transaction.getConnection().prepareStatement(
+                    "select p.id, p.transaction_hash, p.address_hash, p.appeared_at_chain_height, i.confirmation_thresholds"
+                    + " from payments p left join invoices i on i.address_hash = p.address_hash where p.appeared_at_chain_height > ?");
+            statement.setInt(1, splitHeight);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                affected++;
+                String transactionHash = result.getString(2);
+                org.bitcoinj.core.Transaction tx = this.wallet.getTransaction(Sha256Hash.wrap(transactionHash));
+                Integer newHeight = null;
+                if (tx != null && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                    newHeight = tx.getConfidence().getAppearedAtChainHeight();
+                }
+                if (newHeight != null && newHeight == result.getInt(4)) {
+                    continue; // the transaction is in the same block on the new chain
+                }
+                int confirmations = newHeight == null ? 0 : height - newHeight + 1;
+                Pending pending = new Pending(result.getInt(1), transactionHash, result.getString(3),
+                        Invoice.parseConfirmationThresholds(result.getString(5)), newHeight, confirmations);
+                changed.add(pending);
+                owners.put(pending.addressHash, null);
+            }
+            result.close();
+            statement.close();
+
+            if (!changed.isEmpty()) {
+                this.update(transaction.getConnection(), changed);
+                for (String addressHash : owners.keySet()) {
+                    Payment owner = ConfirmationTracker.ownerOf(addressHash);
+                    owner.updateOwnerAggregates();
+                    owner.notifyConfirmed();
+                    owners.put(addressHash, owner);
+                }
+            }
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+
+        synchronized (this) {
+            Set<Integer> changedIds = new HashSet<Integer>();
+            for (Pending pending : changed) {
+                changedIds.add(pending.id);
+                this.removeUnmined(pending);
+            }
+            // unchanged payments go back to the heap as they were, changed ones are replaced
+            for (Pending pending : this.reorganized.values()) {
+                if (!changedIds.contains(pending.id)) {
+                    this.due.add(pending);
+                }
+            }
+            this.reorganized.clear();
+            this.due.removeIf(pending -> changedIds.contains(pending.id));
+            this.mined.removeIf(pending -> changedIds.contains(pending.id));
+            for (Pending pending : changed) {
+                if (pending.isConfirmed()) {
+                    continue;
+                }
+                if (pending.appearedAtChainHeight == null) {
+                    this.addUnmined(pending);
+                } else {
+                    this.due.add(pending);
+                }
+            }
+        }
+        NotificationDispatcher.wakeUp();
+        ConfirmationTracker.publish(owners);
+        logger.info("reorganization at height {}: corrected {} of {} payments", splitHeight, changed.size(), affected);
+        this.checkInBackground();
+    }
+
+    /**
+     * pushes the committed state of the invoices to open checkout pages
+     */
+    private static void publish(Map<String, Payment> owners) {
+        for (Payment owner : owners.values()) {
+            if (owner != null) {
+                InvoiceEvents.publish(owner.getInvoice());
+            }
+        }
+    }
+
+    private static Payment ownerOf(String addressHash) {
+        Payment payment = new Payment();
+        payment.setAddressHash(addressHash);
+        return payment;
+    }
+
+    /**
+     * writes the height and confirmation state of all changed payments with a single statement
+     */
+    private void update(Connection connection, List<Pending> changed) throws SQLException {
+        StringBuilder sql = new StringBuilder("update payments p set appeared_at_chain_height = v.appeared_at_chain_height,"
+                + " confirmations_notified = v.confirmations_notified, next_confirmation_height = v.next_confirmation_height,"
+                + " confirmed_at = case when v.confirmed then coalesce(p.confirmed_at, now()) else null end from (values ");
+        for (int i = 0; i < changed.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(?::integer, ?::integer, ?::integer, ?::integer, ?::boolean)");
+        }
+        sql.append(") as v(id, appeared_at_chain_height, confirmations_notified, next_confirmation_height, confirmed) where p.id = v.id");
+
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        try {
+            int index = 1;
+            for (Pending pending : changed) {
+                statement.setInt(index++, pending.id);
+                if (pending.appearedAtChainHeight == null) {
+                    statement.setNull(index++, Types.INTEGER);
+                } else {
+                    statement.setInt(index++, pending.appearedAtChainHeight);
+                }
+                statement.setInt(index++, pending.getConfirmationsNotified());
+                Integer next = pending.getNextConfirmationHeight();
+                if (next == null) {
+                    statement.setNull(index++, Types.INTEGER);
+                } else {
+                    statement.setInt(index++, next);
+                }
+                statement.setBoolean(index++, pending.isConfirmed());
+            }
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return number of tracked payments, payments waiting to be mined and the last checked height
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("pending", this.due.size());
+        stats.put("unmined", this.unmined.size());
+        stats.put("checkedHeight", this.checkedHeight);
+        return stats;
+    }
+}
@@ -1,6 +1,12 @@
 package pfennig;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,15 +15,18 @@ import java.util.UUID;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.PersistenceException;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
 import net.sf.oval.ConstraintViolation;
 import net.sf.oval.Validator;
+import net.sf.oval.constraint.MatchPattern;
 import net.sf.oval.constraint.NotEmpty;
 import net.sf.oval.constraint.NotNull;
 
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.uri.BitcoinURI;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +35,9 @@ import spark.QueryParamsMap;
 
 import com.avaje.ebean.Ebean;
 import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Expr;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Transaction;
 import com.avaje.ebean.annotation.CreatedTimestamp;
 
 
@@ -34,6 +46,13 @@ import com.avaje.ebean.annotation.CreatedTimestamp;
 public class Invoice {
     static EbeanServer databaseConnnection;
     static Logger logger = LoggerFactory.getLogger(Invoice.class.getName());
+    // confirmation thresholds of invoices created without thresholds, comma separated
+    static String defaultConfirmationThresholds = "2";
+
+    static final Metrics.Histograms FIND_BY_QUERIES = Metrics.queries("Invoice.findBy");
+    static final Metrics.Histograms FIND_ALL_BY_QUERIES = Metrics.queries("Invoice.findAllBy");
+    static final Metrics.Histogram FIND_PAGE_QUERIES = Metrics.query("Invoice.findPage");
+    static final Metrics.Histogram PRELOAD_PAYMENTS_QUERIES = Metrics.query("Invoice.preloadPayments");
 
     @Id
     Integer id;
@@ -70,9 +89,26 @@ public class Invoice {
     @Column(name = "address_hash")
     String addressHash;
 
+    // payment aggregates, maintained by refreshPaymentAggregates() whenever a payment is written
+    @Column(name = "received_satoshi")
+    Long receivedSatoshi;
+    String status;
+    @Column(name = "last_payment_height")
+    Integer lastPaymentHeight;
+    @Column(name = "payment_count")
+    Integer paymentCount;
+
+    // numbers of confirmations a notification is sent at, comma separated and ascending. see ConfirmationTracker
+    @MatchPattern(pattern = "[1-9][0-9]*(,[1-9][0-9]*)*")
+    @Column(name = "confirmation_thresholds")
+    String confirmationThresholds;
+
     @Transient
     List<ConstraintViolation> violations;
 
+    @Transient
+    List<Payment> payments;
+
 
     public static Invoice findByAddressHash(String addressHash) {
         return Invoice.findBy("address_hash", addressHash);
@@ -90,71 +126,321 @@ public class Invoice {
         if (value == null) {
             return null;
         }
+        long start = System.nanoTime();
         List<Invoice> invoices = Ebean.find(Invoice.class).where().eq(attribute, value.trim()).setMaxRows(1).findList();
+        FIND_BY_QUERIES.get(attribute).observeSince(start);
         if (invoices.isEmpty())
             return null;
         return invoices.get(0);
     }
 
+    public static List<Invoice> findByIdentifiers(List<String> identifiers) {
+        return Invoice.findAllBy("identifier", identifiers);
+    }
+
+    public static List<Invoice> findByOrderIds(List<String> orderIds) {
+        return Invoice.findAllBy("orderId", orderIds);
+    }
+
+    public static List<Invoice> findByAddressHashes(List<String> addressHashes) {
+        return Invoice.findAllBy("addressHash", addressHashes);
+    }
+
+    /**
+     * loads all invoices and their payments with two queries, however many values are given
+     *
+     * @return the invoices in the order of the values. unknown values are skipped
+     */
+    public static List<Invoice> findAllBy(String attribute, List<String> values) {
+        List<Invoice> found = new ArrayList<Invoice>();
+        if (values.isEmpty()) {
+            return found;
+        }
+        long start = System.nanoTime();
+        List<Invoice> invoices = Invoice.databaseConnnection.find(Invoice.class).where().in(attribute, values).findList();
+        FIND_ALL_BY_QUERIES.get(attribute).observeSince(start);
+        Invoice.preloadPayments(invoices);
+
+        Map<String, Invoice> byValue = new HashMap<String, Invoice>();
+        for (Invoice invoice : invoices) {
+            byValue.put(attribute.equals("orderId") ? invoice.getOrderId()
+                    : attribute.equals("addressHash") ? invoice.getAddressHash() : invoice.getIdentifier(), invoice);
+        }
+        for (String value : values) {
+            Invoice invoice = byValue.remove(value);
+            if (invoice != null) {
+                found.add(invoice);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * a page of invoices ordered by created_at and id. pages are continued after the last invoice of the
+     * previous page (keyset pagination), thus deep pages are as cheap as the first one.
+     *
+     * @param status - only invoices with this status, or null
+     * @param since - only invoices created at or after, or null
+     * @param until - only invoices created before, or null
+     * @param after - the last invoice of the previous page, or null for the first page
+     */
+    public static List<Invoice> findPage(String status, Timestamp since, Timestamp until, Invoice after, int limit) {
+        ExpressionList<Invoice> query = Invoice.databaseConnnection.find(Invoice.class).where();
+        if (status != null) {
+            query.eq("status", status);
+        }
+        if (since != null) {
+            query.ge("createdAt", since);
+        }
+        if (until != null) {
+            query.lt("createdAt", until);
+        }
+        if (after != null) {
+            query.or(Expr.gt("createdAt", after.getCreatedAt()),
+                    Expr.and(Expr.eq("createdAt", after.getCreatedAt()), Expr.gt("id", after.getId())));
+        }
+        long start = System.nanoTime();
+        List<Invoice> invoices = query.orderBy("createdAt asc, id asc").setMaxRows(limit).findList();
+        FIND_PAGE_QUERIES.observeSince(start);
+        Invoice.preloadPayments(invoices);
+        return invoices;
+    }
+
+    /**
+     * loads the payments of all invoices with one query instead of one query per invoice
+     */
+    public static void preloadPayments(List<Invoice> invoices) {
+        Map<String, List<Payment>> byAddressHash = new HashMap<String, List<Payment>>();
+        for (Invoice invoice : invoices) {
+            if (invoice.getAddressHash() != null) {
+                byAddressHash.put(invoice.getAddressHash(), new ArrayList<Payment>());
+            }
+        }
+        if (!byAddressHash.isEmpty()) {
+            long start = System.nanoTime();
+            List<Payment> payments = Invoice.databaseConnnection.find(Payment.class).where()
+                    .in("addressHash", byAddressHash.keySet()).order("id DESC").findList();
+            PRELOAD_PAYMENTS_QUERIES.observeSince(start);
+            for (Payment payment : payments) {
+                byAddressHash.get(payment.getAddressHash()).add(payment);
+            }
+        }
+        for (Invoice invoice : invoices) {
+            List<Payment> payments = byAddressHash.get(invoice.getAddressHash());
+            invoice.payments = payments == null ? new ArrayList<Payment>() : payments;
+        }
+    }
+
+    /**
+     * @return an opaque cursor pointing after this invoice, see findPage
+     */
+    public String getCursor() {
+        long micros = this.getCreatedAt().getTime() / 1000 * 1000000 + this.getCreatedAt().getNanos() / 1000;
+        return micros + "." + this.getId();
+    }
+
+    /**
+     * @return an invoice with only created_at and id set, or null if the cursor is invalid
+     */
+    public static Invoice fromCursor(String cursor) {
+        String[] parts = cursor == null ? new String[0] : cursor.split("\\.");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            long micros = Long.parseLong(parts[0]);
+            Timestamp createdAt = new Timestamp(micros / 1000);
+            createdAt.setNanos((int) (micros % 1000000) * 1000);
+            Invoice invoice = new Invoice();
+            invoice.setCreatedAt(createdAt);
+            invoice.setId(Integer.parseInt(parts[1]));
+            return invoice;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public static Invoice fromQueryMap(QueryParamsMap params) {
         Invoice invoice = new Invoice();
-        logger.info("new invoice with:" +
- " notificationUrl=" + params.get("notificationUrl").value() +
-                " description=" + params.get("description").value() +
- " orderId=" + params.get("orderId").value() +
-                " currency=" + params.get("currency").value() +
- " price=" + params.get("price").value());
+        logger.info("new invoice with: notificationUrl={} description={} orderId={} currency={} price={}",
+                params.get("notificationUrl").value(), params.get("description").value(), params.get("orderId").value(),
+                params.get("currency").value(), params.get("price").value());
         
         try {
             invoice.insertPrice(params.get("price").longValue(), params.get("currency").value());
-        } catch (NumberFormatException e) {
+        } catch (IllegalArgumentException e) {
+            // invalid price or unsupported currency. the invoice fails validation without a satoshi value
+            logger.info("could not price invoice: {}", e.getMessage());
         }
         
         invoice.setNotificationUrl(params.get("notificationUrl").value());
         invoice.setDescription(params.get("description").value());
         invoice.setOrderId(params.get("orderId").value());
         invoice.setLabel(params.get("label").value());
+        invoice.setConfirmationThresholds(params.get("confirmations").value());
         return invoice;
     }
 
-    public boolean sendNotification() {
-        if (this.getNotificationUrl() == null || this.getNotificationUrl().trim().isEmpty()) {
-            logger.info("no notificationUrl for invoice: " + this.getIdentifier());
-            return true;
+    /**
+     * parses comma separated confirmation thresholds, e.g. "1,6". null means the default thresholds
+     *
+     * @return the thresholds in ascending order
+     */
+    public static int[] parseConfirmationThresholds(String thresholds) {
+        if (thresholds == null || thresholds.trim().isEmpty()) {
+            thresholds = Invoice.defaultConfirmationThresholds;
         }
+        String[] values = thresholds.split(",");
+        int[] parsed = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            parsed[i] = Integer.parseInt(values[i].trim());
+        }
+        java.util.Arrays.sort(parsed);
+        return parsed;
+    }
 
-        logger.info("sending notification for invoice " + this.getIdentifier() + " to: " + this.getNotificationUrl());
-        if (Utils.sendNotification(this.getNotificationUrl().trim(), this.toJson())) {
-            logger.info("notification successful for invoice " + this.getIdentifier());
-            return true;
-        } else {
-            logger.error("notification failed for invoice " + this.getIdentifier());
-            return true;
+    /**
+     * builds an invoice from a JSON object with the same attributes as the query params of fromQueryMap
+     *
+     * @param snapshot - the exchange rates to price the invoice with, or null for the current ones
+     * @throws StaleExchangeRateException if there is no current exchange rate for the currency
+     */
+    public static Invoice fromJson(Map attributes, PriceCalculator.Snapshot snapshot) {
+        Invoice invoice = new Invoice();
+        Object price = attributes.get("price");
+        Object currency = attributes.get("currency");
+        try {
+            invoice.insertPrice(Long.parseLong(String.valueOf(price)), String.valueOf(currency), snapshot);
+        } catch (IllegalArgumentException e) {
+            // invalid price or unsupported currency. the invoice fails validation without a satoshi value
+            logger.info("could not price invoice: {}", e.getMessage());
+        }
+        invoice.setNotificationUrl(Invoice.stringOf(attributes.get("notificationUrl")));
+        invoice.setDescription(Invoice.stringOf(attributes.get("description")));
+        invoice.setOrderId(Invoice.stringOf(attributes.get("orderId")));
+        invoice.setLabel(Invoice.stringOf(attributes.get("label")));
+        invoice.setConfirmationThresholds(Invoice.stringOf(attributes.get("confirmations")));
+        return invoice;
+    }
+
+    /**
+     * JSON attributes may be numbers or booleans where a string is expected, e.g. a numeric orderId
+     */
+    private static String stringOf(Object value) {
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * writes a notification with the current state to the outbox. it is delivered by the NotificationDispatcher.
+     *
+     * @param transactionHash - the transaction that caused the notification, used for tracing. may be null
+     */
+    public void enqueueNotification(String transactionHash) {
+        Notification notification = this.toNotification(transactionHash);
+        if (notification != null) {
+            Notification.databaseConnnection.save(notification);
         }
+    }
 
+    /**
+     * @return a notification with the current state, not written yet. null if there is no notificationUrl
+     */
+    Notification toNotification(String transactionHash) {
+        if (this.getNotificationUrl() == null || this.getNotificationUrl().trim().isEmpty()) {
+            logger.info("no notificationUrl for invoice: {}", this.getIdentifier());
+            return null;
+        }
+
+        logger.info("queueing notification for invoice {} to: {}", this.getIdentifier(), this.getNotificationUrl());
+        return Notification.create(this.getNotificationUrl(), this.toJson(), transactionHash);
     }
 
+    /**
+     * @throws StaleExchangeRateException if there is no current exchange rate for the currency
+     */
     public void insertPrice(long price, String currency) {
+        this.insertPrice(price, currency, null);
+    }
+
+    /**
+     * @param snapshot - the exchange rates to use, or null for the current ones
+     * @throws StaleExchangeRateException if there is no current exchange rate for the currency
+     */
+    public void insertPrice(long price, String currency, PriceCalculator.Snapshot snapshot) {
         this.currency = currency;
         this.price = price;
         if (currency.equals("BTC")) {
             this.setSatoshiValue(price);
         } else {
-            this.setSatoshiValue(PriceCalculator.forCurrency(this.currency).fiatToCoin(currency, price).getValue());
+            this.setSatoshiValue(PriceCalculator.forCurrency(this.currency, snapshot).fiatToCoin(currency, price).getValue());
         }
     }
 
     public boolean save() {
-        if (this.identifier == null)
-            this.identifier = UUID.randomUUID().toString();
+        this.initialize();
         if (this.isValid()) {
             Invoice.databaseConnnection.save(this);
+            if (AddressIndex.instance != null) {
+                AddressIndex.instance.put(this.getAddressHash(), AddressIndex.OwnerType.INVOICE, this.getId());
+            }
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * @return true if the exception was caused by the unique index on order_id. the orderId is checked before an
+     *         invoice is saved, but a concurrent request may have used it in between
+     */
+    static boolean isDuplicateOrderId(PersistenceException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && "23505".equals(((SQLException) cause).getSQLState())
+                    && String.valueOf(cause.getMessage()).contains("ix_invoices_order_id")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * sets the identifier and the defaults of a new invoice
+     */
+    void initialize() {
+        if (this.identifier == null)
+            this.identifier = UUID.randomUUID().toString();
+        if (this.receivedSatoshi == null) {
+            this.receivedSatoshi = 0L;
+            this.paymentCount = 0;
+            this.status = Invoice.statusFor(0, this.getSatoshiValue());
+        }
+        if (this.confirmationThresholds == null || this.confirmationThresholds.trim().isEmpty())
+            this.confirmationThresholds = Invoice.defaultConfirmationThresholds;
+    }
+
+    /**
+     * inserts new invoices with JDBC batches in a single transaction. the invoices must have been validated
+     */
+    public static void saveAll(List<Invoice> invoices) {
+        Transaction transaction = Invoice.databaseConnnection.beginTransaction();
+        try {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(500);
+            for (Invoice invoice : invoices) {
+                invoice.initialize();
+                Invoice.databaseConnnection.save(invoice, transaction);
+            }
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+        if (AddressIndex.instance != null) {
+            for (Invoice invoice : invoices) {
+                AddressIndex.instance.put(invoice.getAddressHash(), AddressIndex.OwnerType.INVOICE, invoice.getId());
+            }
+        }
+    }
+
     public boolean isValid() {
         Validator validator = new Validator();
         this.violations = validator.validate(this);
@@ -162,6 +448,10 @@ public class Invoice {
     }
 
     public String toJson() {
+        return this.toJsonObject().toJSONString();
+    }
+
+    public JSONObject toJsonObject() {
         JSONObject invoiceJson = new JSONObject();
         invoiceJson.put("identifier", this.getIdentifier());
         invoiceJson.put("addressHash", this.getAddressHash());
@@ -179,29 +469,127 @@ public class Invoice {
         invoiceJson.put("orderId", this.getOrderId());
         invoiceJson.put("confirmations", this.getConfidence());
         invoiceJson.put("appearedAt", this.getAppearedAtChainHeight());
+        invoiceJson.put("confirmationThresholds", this.getConfirmationThresholds());
 
         invoiceJson.put("transactions", this.getTransactionHashes());
         invoiceJson.put("status", this.getStatus());
         invoiceJson.put("paid", this.isPaid());
 
-        return invoiceJson.toJSONString();
+        return invoiceJson;
+    }
+
+    /**
+     * recalculates the stored payment aggregates (received amount, status, payment count and height of the last payment)
+     * from the payments of the invoice address. called whenever a payment for the address is written.
+     * joins the current transaction if there is one.
+     */
+    public void refreshPaymentAggregates() {
+        Transaction transaction = Invoice.databaseConnnection.currentTransaction();
+        boolean ownTransaction = transaction == null || !transaction.isActive();
+        if (ownTransaction) {
+            transaction = Invoice.databaseConnnection.beginTransaction();
+        }
+        try {
+            Invoice.refreshPaymentAggregates(transaction.getConnection(), Collections.singletonList(this.getAddressHash()));
+            Invoice.databaseConnnection.refresh(this);
+            if (ownTransaction) {
+                transaction.commit();
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            if (ownTransaction) {
+                transaction.end();
+            }
+        }
+        this.payments = null;
+    }
+
+    /**
+     * recalculates the stored payment aggregates of the invoices of the addresses with one statement, see statusFor.
+     *
+     * the invoice rows are locked first, thus the aggregates are calculated from all payments committed until the
+     * lock is granted, and a concurrent refresh can not overwrite them with an older state.
+     */
+    static void refreshPaymentAggregates(Connection connection, Collection<String> addressHashes) throws SQLException {
+        if (addressHashes.isEmpty()) {
+            return;
+        }
+        String placeholders = Utils.placeholders(addressHashes.size());
+        PreparedStatement lock = connection.prepareStatement("select id from invoices where address_hash in (" + placeholders + ") order by id for update");
+        try {
+            Utils.setStrings(lock, 1, addressHashes);
+            lock.executeQuery().close();
+        } finally {
+            lock.close();
+        }
+
+        PreparedStatement update = connection.prepareStatement("update invoices i set received_satoshi = a.received, payment_count = a.payment_count,"
+                + " last_payment_height = a.last_payment_height,"
+                + " status = case when a.received = 0 then 'pending' when a.received = i.satoshi_value then 'paid'"
+                + " when a.received > i.satoshi_value then 'paidOver' else 'paidPartial' end,"
+                + " paid_at = case when i.paid_at is null and a.received > 0 and a.received >= i.satoshi_value then now() else i.paid_at end"
+                + " from (select p.address_hash, sum(p.received_satoshi_value) as received, count(*) as payment_count,"
+                + " (array_agg(p.appeared_at_chain_height order by p.id desc))[1] as last_payment_height"
+                + " from payments p where p.address_hash in (" + placeholders + ") group by p.address_hash) a"
+                + " where i.address_hash = a.address_hash");
+        try {
+            Utils.setStrings(update, 1, addressHashes);
+            update.executeUpdate();
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * returns the status of an invoice depending on the amount received:
+     * nothing: invoice is pending
+     * exactly the correct amount: paid
+     * too little: paidPartial
+     * too much: paidOver
+     * 
+     * @return String - status
+     */
+    static String statusFor(long received, Long satoshiValue) {
+        long satoshi = satoshiValue == null ? 0 : satoshiValue;
+        if (received == 0) {
+            return "pending";
+        }
+        if (received == satoshi) {
+            return "paid";
+        }
+        if (received > satoshi) {
+            return "paidOver";
+        }
+        return "paidPartial";
     }
 
+    /**
+     * returns the payments of the invoice address. loaded once per instance.
+     * 
+     * @return List of payments ordered by id DESC
+     */
     public List<Payment> getPayments() {
-        return Payment.findByAddressHash(this.getAddressHash());
+        if (this.payments == null) {
+            this.payments = Payment.findByAddressHash(this.getAddressHash());
+        }
+        return this.payments;
     }
     
+    /**
+     * @return the BIP21 payment URI for the amount still missing, e.g. bitcoin:1abc...?amount=0.01&label=...
+     */
+    public String getPaymentUri() {
+        Coin amount = this.getMissingSatoshi().signum() > 0 ? this.getMissingSatoshi() : this.getSatoshi();
+        return BitcoinURI.convertToBitcoinURI(this.getAddressHash(), amount, this.getLabel(), this.getDescription());
+    }
+
     public String getBtcPrice() {
         return this.getSatoshi().toPlainString();
     }
 
     public Coin getReceivedSatoshi() {
-        Coin sum = Coin.valueOf(0);
-        List<Payment> payments = this.getPayments();
-        for (Payment payment : payments) {
-            sum = sum.add(payment.getReceivedSatoshi());
-        }
-        return sum;
+        return Coin.valueOf(this.receivedSatoshi == null ? 0 : this.receivedSatoshi);
     }
 
     /**
@@ -231,28 +619,15 @@ public class Invoice {
     }
 
     /**
-     * returns the status of the invoice depending on the amount received:
-     * nothing: invoice is pending
-     * exactly the correct amount: paid
-     * too little: paidPartial
-     * too much: paidOver
+     * returns the stored status of the invoice. see statusFor()
      * 
      * @return String - status
      */
     public String getStatus() {
-        if (this.getReceivedSatoshi().isZero()) {
+        if (this.status == null) {
             return "pending";
         }
-        if (this.getReceivedSatoshi().getValue() == this.getSatoshi().getValue()) {
-            return "paid";
-        }
-        if (this.getReceivedSatoshi().getValue() > this.getSatoshi().getValue()) {
-            return "paidOver";
-        }
-        if (this.getReceivedSatoshi().getValue() < this.getSatoshi().getValue()) {
-            return "paidPartial";
-        }
-        return null;
+        return this.status;
     }
     
     /**
@@ -261,24 +636,22 @@ public class Invoice {
      * @return Integer or null of not yet confirmed
      */
     public Integer getAppearedAtChainHeight() {
-        List<Payment> payments = this.getPayments();
-        if (payments.size() > 0) {
-            return payments.get(payments.size() - 1).getAppearedAtChainHeight();
-        }
-        return null;
+        return this.lastPaymentHeight;
     }
 
     /**
-     * returns the confirmations/confidence of the last received payment. null if it is not yet in a block
+     * returns the confirmations/confidence of the last received payment. null if no payment was received
      * 
      * @return Integer or null
      */
     public Integer getConfidence() {
-        List<Payment> payments = this.getPayments();
-        if (payments.size() > 0) {
-            return payments.get(payments.size() - 1).getConfidence();
+        if (this.paymentCount == null || this.paymentCount == 0) {
+            return null;
+        }
+        if (this.lastPaymentHeight == null) {
+            return 0;
         }
-        return null;
+        return Treasury.instance.getChainHeight() - this.lastPaymentHeight + 1; // +1 because we count the first appearance as one confirmation
     }
 
     public Long getPrice() {
@@ -385,6 +758,14 @@ public class Invoice {
         this.label = label;
     }
 
+    public Integer getLastPaymentHeight() {
+        return lastPaymentHeight;
+    }
+
+    public Integer getPaymentCount() {
+        return paymentCount;
+    }
+
     public List<ConstraintViolation> getViolations() {
         return violations;
     }
@@ -393,4 +774,12 @@ public class Invoice {
         this.violations = violations;
     }
 
+
+    public String getConfirmationThresholds() {
+        return confirmationThresholds;
+    }
+
+    public void setConfirmationThresholds(String confirmationThresholds) {
+        this.confirmationThresholds = confirmationThresholds == null ? null : confirmationThresholds.replace(" ", "");
+    }
 }
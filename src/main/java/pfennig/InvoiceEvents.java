@@ -0,0 +1,306 @@
+package pfennig;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.Request;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * pushes invoice updates to open checkout pages as server-sent events.
+ *
+ * a subscriber is an async servlet request, so an idle connection holds no thread. a message with the current
+ * invoice is sent when subscribing and whenever a payment for the invoice is written or confirmed. a comment is sent
+ * periodically to keep proxies from closing idle connections.
+ *
+ * messages are put into a small queue per connection and written by a pool of writer threads, at most one at a time
+ * per connection, so slow clients never block the payment ingestion nor the other subscribers. a connection whose
+ * queue overflows or whose write does not finish within WRITE_TIMEOUT is closed, the browser reconnects and gets
+ * the current state.
+ */
+public class InvoiceEvents {
+    public static InvoiceEvents instance;
+    static Logger logger = LoggerFactory.getLogger(InvoiceEvents.class.getName());
+    static final long TIMEOUT = 10 * 60 * 1000; // in milliseconds, the browser reconnects afterwards
+    static final long KEEPALIVE_INTERVAL = 25; // in seconds
+    static final long WRITE_TIMEOUT = 10; // in seconds
+    static final int MAX_QUEUED_MESSAGES = 16; // per connection
+    static final int WRITER_THREADS = 8;
+
+    private Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<String, Set<Subscriber>>();
+    private AtomicInteger connections = new AtomicInteger();
+    private AtomicLong dropped = new AtomicLong();
+    private int maxConnections;
+    private ScheduledExecutorService sender;
+    private ExecutorService writers;
+
+    /**
+     * an open event stream and the messages waiting to be written to it
+     */
+    class Subscriber {
+        final String identifier;
+        final AsyncContext context;
+        // the connection of the request, closed to abort a write that takes too long. null if not running on jetty
+        final EndPoint endPoint;
+        private final Deque<String> queue = new ArrayDeque<String>();
+        private boolean writing = false;
+        private boolean closed = false;
+        // System.nanoTime() when the current write started, 0 while not writing
+        private volatile long writeStartedAt = 0;
+
+        Subscriber(String identifier, AsyncContext context) {
+            this.identifier = identifier;
+            this.context = context;
+            this.endPoint = InvoiceEvents.endPointOf(context.getRequest());
+        }
+
+        /**
+         * queues the message and hands the connection to a writer unless one is writing to it already
+         */
+        void offer(String message) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                if (this.queue.size() < MAX_QUEUED_MESSAGES) {
+                    this.queue.add(message);
+                    if (!this.writing) {
+                        this.writing = true;
+                        InvoiceEvents.this.writers.execute(this::write);
+                    }
+                    return;
+                }
+            }
+            logger.info("dropping slow invoice event subscriber of {}", this.identifier);
+            this.close();
+        }
+
+        /**
+         * writes the queued messages until the queue is empty
+         */
+        private void write() {
+            while (true) {
+                StringBuilder messages = new StringBuilder();
+                synchronized (this) {
+                    if (this.queue.isEmpty() || this.closed) {
+                        this.writing = false;
+                        return;
+                    }
+                    while (!this.queue.isEmpty()) {
+                        messages.append(this.queue.poll());
+                    }
+                }
+                this.writeStartedAt = System.nanoTime();
+                try {
+                    ServletOutputStream out = this.context.getResponse().getOutputStream();
+                    out.write(messages.toString().getBytes(Charsets.UTF_8));
+                    out.flush();
+                } catch (Exception e) {
+                    // the client is gone or the write was aborted
+                    synchronized (this) {
+                        this.writing = false;
+                    }
+                    this.close();
+                    return;
+                } finally {
+                    this.writeStartedAt = 0;
+                }
+            }
+        }
+
+        boolean isStalled(long now) {
+            long startedAt = this.writeStartedAt;
+            return startedAt != 0 && now - startedAt > TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT);
+        }
+
+        /**
+         * removes the subscriber and closes the connection. a blocked write fails once the connection is closed
+         */
+        void close() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                this.queue.clear();
+            }
+            InvoiceEvents.this.remove(this);
+            InvoiceEvents.this.dropped.incrementAndGet();
+            if (this.endPoint != null && this.writeStartedAt != 0) {
+                this.endPoint.close();
+            }
+            try {
+                this.context.complete();
+            } catch (IllegalStateException completed) {
+            }
+        }
+    }
+
+    public InvoiceEvents(int maxConnections) {
+        this.maxConnections = maxConnections;
+        this.sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("invoice-events").setDaemon(true).build());
+        this.writers = Executors.newFixedThreadPool(WRITER_THREADS, new ThreadFactoryBuilder().setNameFormat("invoice-events-writer-%d").setDaemon(true).build());
+    }
+
+    public void start() {
+        this.sender.scheduleWithFixedDelay(this::keepAlive, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL, TimeUnit.SECONDS);
+        this.sender.scheduleWithFixedDelay(this::closeStalled, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * puts the request into async mode and sends the current state of the invoice
+     *
+     * @return false if there are too many open connections
+     */
+    public boolean subscribe(Invoice invoice, HttpServletRequest request, HttpServletResponse response) {
+        if (this.connections.incrementAndGet() > this.maxConnections) {
+            this.connections.decrementAndGet();
+            return false;
+        }
+        String identifier = invoice.getIdentifier();
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // tells nginx not to buffer the stream
+        response.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext context = request.startAsync();
+        context.setTimeout(TIMEOUT);
+        Subscriber subscriber = new Subscriber(identifier, context);
+        context.addListener(new AsyncListener() {
+            public void onComplete(AsyncEvent event) {
+                InvoiceEvents.this.remove(subscriber);
+            }
+
+            public void onTimeout(AsyncEvent event) {
+                context.complete();
+            }
+
+            public void onError(AsyncEvent event) {
+                context.complete();
+            }
+
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        this.subscribers.compute(identifier, (key, subscribers) -> {
+            Set<Subscriber> updated = subscribers == null ? new CopyOnWriteArraySet<Subscriber>() : subscribers;
+            updated.add(subscriber);
+            return updated;
+        });
+
+        // commits the response, thus spark does not write a body. the messages are written by the writers
+        try {
+            response.flushBuffer();
+        } catch (IOException e) {
+            subscriber.close();
+            return true;
+        }
+        subscriber.offer("retry: 3000\n" + InvoiceEvents.message(invoice.toJson()));
+        return true;
+    }
+
+    /**
+     * sends the current state of the invoice to its subscribers
+     */
+    public static void publish(Invoice invoice) {
+        InvoiceEvents events = InvoiceEvents.instance;
+        if (events == null || invoice == null || !events.subscribers.containsKey(invoice.getIdentifier())) {
+            return;
+        }
+        String message = InvoiceEvents.message(invoice.toJson());
+        events.sender.execute(() -> events.send(invoice.getIdentifier(), message));
+    }
+
+    private static String message(String invoiceJson) {
+        return "event: invoice\ndata: " + invoiceJson + "\n\n";
+    }
+
+    private void send(String identifier, String message) {
+        Set<Subscriber> subscribers = this.subscribers.get(identifier);
+        if (subscribers != null) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(message);
+            }
+        }
+    }
+
+    private void keepAlive() {
+        for (Set<Subscriber> subscribers : this.subscribers.values()) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(": keepalive\n\n");
+            }
+        }
+    }
+
+    private void closeStalled() {
+        long now = System.nanoTime();
+        for (Set<Subscriber> subscribers : this.subscribers.values()) {
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.isStalled(now)) {
+                    logger.info("closing invoice event subscriber of {}, write timed out", subscriber.identifier);
+                    subscriber.close();
+                }
+            }
+        }
+    }
+
+    private void remove(Subscriber subscriber) {
+        this.subscribers.computeIfPresent(subscriber.identifier, (key, subscribers) -> {
+            if (subscribers.remove(subscriber)) {
+                this.connections.decrementAndGet();
+            }
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * spark wraps the jetty request
+     */
+    private static EndPoint endPointOf(ServletRequest request) {
+        while (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+        if (request instanceof Request) {
+            return ((Request) request).getHttpChannel().getEndPoint();
+        }
+        return null;
+    }
+
+    /**
+     * @return number of open connections, of invoices with subscribers and of connections closed after a failed or slow write
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("connections", this.connections.get());
+        stats.put("invoices", this.subscribers.size());
+        stats.put("dropped", this.dropped.get());
+        return stats;
+    }
+}
@@ -0,0 +1,137 @@
+package pfennig;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.google.common.base.Charsets;
+
+/**
+ * streams invoices as newline delimited JSON (one invoice per line).
+ *
+ * rows are read in pages continued after the last row of the previous page (keyset pagination on created_at and id).
+ * each page is read in its own short transaction and written to the output after the transaction ended, so a slow
+ * client never keeps a transaction open, and neither all rows nor the response are held in memory.
+ * the stored payment aggregates are exported, not the single payments.
+ */
+public class InvoiceExport {
+    static Logger logger = LoggerFactory.getLogger(InvoiceExport.class.getName());
+    static final int PAGE_SIZE = 500;
+
+    private EbeanServer databaseConnnection;
+    private String status;
+    private Timestamp since;
+    private Timestamp until;
+
+    /**
+     * @param status - only invoices with this status, or null
+     * @param since - only invoices created at or after, or null
+     * @param until - only invoices created before, or null
+     */
+    public InvoiceExport(EbeanServer databaseConnnection, String status, Timestamp since, Timestamp until) {
+        this.databaseConnnection = databaseConnnection;
+        this.status = status;
+        this.since = since;
+        this.until = until;
+    }
+
+    /**
+     * @return the number of exported invoices
+     */
+    public int writeTo(OutputStream out) throws IOException, SQLException {
+        long start = System.nanoTime();
+        int exported = 0;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+
+        StringBuilder sql = new StringBuilder("select id, identifier, order_id, address_hash, price, currency, satoshi_value, received_satoshi,"
+                + " status, payment_count, last_payment_height, label, description, created_at, paid_at from invoices where true");
+        List<Object> values = new ArrayList<Object>();
+        if (this.status != null) {
+            sql.append(" and status = ?");
+            values.add(this.status);
+        }
+        if (this.since != null) {
+            sql.append(" and created_at >= ?");
+            values.add(this.since);
+        }
+        if (this.until != null) {
+            sql.append(" and created_at < ?");
+            values.add(this.until);
+        }
+        String firstPage = sql.toString() + " order by created_at, id limit " + PAGE_SIZE;
+        String nextPage = sql.toString() + " and (created_at, id) > (?, ?) order by created_at, id limit " + PAGE_SIZE;
+
+        Timestamp lastCreatedAt = null;
+        int lastId = 0;
+        List<String> page = new ArrayList<String>(PAGE_SIZE);
+        do {
+            page.clear();
+            Transaction transaction = this.databaseConnnection.beginTransaction();
+            try {
+                PreparedStatement statement = transaction.getConnection().prepareStatement(lastCreatedAt == null ? firstPage : nextPage);
+                int index = 1;
+                for (Object value : values) {
+                    statement.setObject(index++, value);
+                }
+                if (lastCreatedAt != null) {
+                    statement.setTimestamp(index++, lastCreatedAt);
+                    statement.setInt(index++, lastId);
+                }
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    page.add(InvoiceExport.toJson(result).toJSONString());
+                    lastCreatedAt = result.getTimestamp("created_at");
+                    lastId = result.getInt("id");
+                }
+                result.close();
+                statement.close();
+                transaction.commit();
+            } finally {
+                transaction.end();
+            }
+            for (String invoice : page) {
+                writer.write(invoice);
+                writer.write('\n');
+                exported++;
+            }
+        } while (page.size() == PAGE_SIZE);
+        writer.flush();
+        logger.info("exported {} invoices in {}ms", exported, (System.nanoTime() - start) / 1000000);
+        return exported;
+    }
+
+    private static JSONObject toJson(ResultSet row) throws SQLException {
+        JSONObject invoiceJson = new JSONObject();
+        invoiceJson.put("identifier", row.getString("identifier"));
+        invoiceJson.put("orderId", row.getString("order_id"));
+        invoiceJson.put("addressHash", row.getString("address_hash"));
+        invoiceJson.put("price", row.getObject("price"));
+        invoiceJson.put("currency", row.getString("currency"));
+        invoiceJson.put("satoshi", row.getObject("satoshi_value"));
+        invoiceJson.put("receivedSatoshi", row.getObject("received_satoshi"));
+        invoiceJson.put("status", row.getString("status"));
+        invoiceJson.put("paymentCount", row.getObject("payment_count"));
+        invoiceJson.put("lastPaymentHeight", row.getObject("last_payment_height"));
+        invoiceJson.put("label", row.getString("label"));
+        invoiceJson.put("description", row.getString("description"));
+        Timestamp createdAt = row.getTimestamp("created_at");
+        invoiceJson.put("createdAt", createdAt == null ? null : createdAt.getTime());
+        Timestamp paidAt = row.getTimestamp("paid_at");
+        invoiceJson.put("paidAt", paidAt == null ? null : paidAt.getTime());
+        return invoiceJson;
+    }
+}
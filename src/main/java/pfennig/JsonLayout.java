@@ -0,0 +1,62 @@
+package pfennig;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.LayoutBase;
+
+/**
+ * renders log events as one JSON object per line (see logback.xml).
+ *
+ * besides the formatted message an event carries its message template and arguments, thus all events of one log
+ * statement can be grouped and filtered by their values without parsing the message.
+ */
+public class JsonLayout extends LayoutBase<ILoggingEvent> {
+    private String applicationId = "pfennig";
+
+    public void setApplicationId(String applicationId) {
+        this.applicationId = applicationId;
+    }
+
+    @Override
+    public String doLayout(ILoggingEvent event) {
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("time", Instant.ofEpochMilli(event.getTimeStamp()).toString());
+        json.put("host", this.getContext() == null ? null : this.getContext().getProperty(CoreConstants.HOSTNAME_KEY));
+        json.put("app", this.applicationId);
+        json.put("level", event.getLevel().toString());
+        json.put("thread", event.getThreadName());
+        json.put("logger", event.getLoggerName());
+        json.put("message", event.getFormattedMessage());
+        Object[] arguments = event.getArgumentArray();
+        if (arguments != null && arguments.length > 0) {
+            json.put("template", event.getMessage());
+            JSONArray args = new JSONArray();
+            for (Object argument : arguments) {
+                args.add(argument == null || argument instanceof Number || argument instanceof Boolean ? argument : String.valueOf(argument));
+            }
+            json.put("args", args);
+        }
+        if (!event.getMDCPropertyMap().isEmpty()) {
+            json.put("mdc", event.getMDCPropertyMap());
+        }
+        IThrowableProxy throwable = event.getThrowableProxy();
+        if (throwable != null) {
+            json.put("exception", ThrowableProxyUtil.asString(throwable));
+        }
+        return JSONValue.toJSONString(json) + CoreConstants.LINE_SEPARATOR;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/json";
+    }
+}
@@ -0,0 +1,303 @@
+package pfennig;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+import spark.Route;
+
+/**
+ * collects metrics and renders them in the Prometheus text format (GET /metrics).
+ *
+ * counters and histograms are registered once, usually as static fields, and are updated with atomic increments
+ * only: recording a value neither locks nor allocates. gauges are read when the metrics are rendered.
+ */
+public class Metrics {
+    // upper bounds of the latency buckets in seconds
+    static final double[] LATENCY_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+    /**
+     * all metrics with the same name. a metric is one combination of label values
+     */
+    static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+        final List<Metric> ordered = new CopyOnWriteArrayList<Metric>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    abstract static class Metric {
+        // rendered labels, e.g. {route="/api/invoices"} or an empty string
+        final String labels;
+
+        Metric(String labels) {
+            this.labels = labels;
+        }
+
+        abstract void render(String name, StringBuilder out);
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String labels) {
+            super(labels);
+        }
+
+        public void inc() {
+            this.value.increment();
+        }
+
+        public void add(long amount) {
+            this.value.add(amount);
+        }
+
+        public long get() {
+            return this.value.sum();
+        }
+
+        void render(String name, StringBuilder out) {
+            out.append(name).append(this.labels).append(' ').append(this.value.sum()).append('\n');
+        }
+    }
+
+    public static class Gauge extends Metric {
+        private volatile DoubleSupplier value;
+
+        Gauge(String labels, DoubleSupplier value) {
+            super(labels);
+            this.value = value;
+        }
+
+        void render(String name, StringBuilder out) {
+            double current;
+            try {
+                current = this.value.getAsDouble();
+            } catch (RuntimeException e) {
+                current = Double.NaN;
+            }
+            out.append(name).append(this.labels).append(' ').append(Metrics.format(current)).append('\n');
+        }
+    }
+
+    /**
+     * a histogram of durations. bucket counts are kept per bucket and summed up when rendered
+     */
+    public static class Histogram extends Metric {
+        private final long[] bounds; // in nanoseconds
+        private final AtomicLongArray buckets; // the last bucket is +Inf
+        private final AtomicLong sum = new AtomicLong(); // in nanoseconds
+
+        Histogram(String labels, double[] bounds) {
+            super(labels);
+            this.bounds = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                this.bounds[i] = (long) (bounds[i] * 1e9);
+            }
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void observe(long nanos) {
+            int bucket = 0;
+            while (bucket < this.bounds.length && nanos > this.bounds[bucket]) {
+                bucket++;
+            }
+            this.buckets.incrementAndGet(bucket);
+            this.sum.addAndGet(nanos);
+        }
+
+        /**
+         * @param start - System.nanoTime() at the start of the measured operation
+         */
+        public void observeSince(long start) {
+            this.observe(System.nanoTime() - start);
+        }
+
+        void render(String name, StringBuilder out) {
+            long count = 0;
+            for (int i = 0; i < this.buckets.length(); i++) {
+                count += this.buckets.get(i);
+                String le = i < this.bounds.length ? Metrics.format(this.bounds[i] / 1e9) : "+Inf";
+                out.append(name).append("_bucket").append(Metrics.withLabel(this.labels, "le", le)).append(' ').append(count).append('\n');
+            }
+            out.append(name).append("_sum").append(this.labels).append(' ').append(Metrics.format(this.sum.get() / 1e9)).append('\n');
+            out.append(name).append("_count").append(this.labels).append(' ').append(count).append('\n');
+        }
+    }
+
+    /**
+     * histograms that differ in one label, e.g. the attribute a finder looks up by. the histogram of a label value
+     * is registered on first use and looked up without allocating afterwards
+     */
+    public static class Histograms {
+        private final String name;
+        private final String help;
+        private final String[] labels;
+        private final String variableLabel;
+        private final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+        Histograms(String name, String help, String variableLabel, String... labels) {
+            this.name = name;
+            this.help = help;
+            this.variableLabel = variableLabel;
+            this.labels = labels;
+        }
+
+        public Histogram get(String value) {
+            Histogram histogram = this.histograms.get(value);
+            if (histogram == null) {
+                histogram = this.histograms.computeIfAbsent(value, key -> {
+                    String[] labels = Arrays.copyOf(this.labels, this.labels.length + 2);
+                    labels[this.labels.length] = this.variableLabel;
+                    labels[this.labels.length + 1] = key;
+                    return Metrics.histogram(this.name, this.help, labels);
+                });
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * @param labels - label names and values, e.g. "route", "/api/invoices"
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) Metrics.register(name, help, "counter", labels, rendered -> new Counter(rendered));
+    }
+
+    /**
+     * a latency histogram, see LATENCY_BUCKETS
+     *
+     * @param labels - label names and values, e.g. "route", "/api/invoices"
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) Metrics.register(name, help, "histogram", labels, rendered -> new Histogram(rendered, LATENCY_BUCKETS));
+    }
+
+    public static Histograms histograms(String name, String help, String variableLabel, String... labels) {
+        return new Histograms(name, help, variableLabel, labels);
+    }
+
+    /**
+     * registers a gauge read when the metrics are rendered. registering a gauge again replaces its value
+     *
+     * @param labels - label names and values, e.g. "currency", "EUR"
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        Gauge gauge = (Gauge) Metrics.register(name, help, "gauge", labels, rendered -> new Gauge(rendered, value));
+        gauge.value = value;
+    }
+
+    /**
+     * the duration of database queries of a finder. the query count is the count of the histogram
+     */
+    public static Histogram query(String finder) {
+        return Metrics.histogram("pfennig_db_query_duration_seconds", "duration of database queries by finder", "finder", finder);
+    }
+
+    /**
+     * the duration of database queries of a finder by the attribute it looks up
+     */
+    public static Histograms queries(String finder) {
+        return Metrics.histograms("pfennig_db_query_duration_seconds", "duration of database queries by finder", "by", "finder", finder);
+    }
+
+    /**
+     * wraps a route so its duration is recorded in a histogram per route
+     */
+    public static Route timed(String method, String path, Route route) {
+        Histogram histogram = Metrics.histogram("pfennig_http_request_duration_seconds", "duration of HTTP requests by route", "method", method, "route", path);
+        return (request, response) -> {
+            long start = System.nanoTime();
+            try {
+                return route.handle(request, response);
+            } finally {
+                histogram.observeSince(start);
+            }
+        };
+    }
+
+    private static Metric register(String name, String help, String type, String[] labels, Function<String, Metric> create) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        }
+        String rendered = Metrics.renderLabels(labels);
+        synchronized (family) {
+            Metric metric = family.metrics.get(rendered);
+            if (metric == null) {
+                metric = create.apply(rendered);
+                family.metrics.put(rendered, metric);
+                family.ordered.add(metric);
+            }
+            return metric;
+        }
+    }
+
+    private static String renderLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be pairs of names and values");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder rendered = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            rendered.append(i == 0 ? "" : ",").append(labels[i]).append("=\"").append(Metrics.escape(labels[i + 1])).append('"');
+        }
+        return rendered.append('}').toString();
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Metric metric : family.ordered) {
+                metric.render(family.name, out);
+            }
+        }
+        return out.toString();
+    }
+}
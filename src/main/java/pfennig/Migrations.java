@@ -0,0 +1,143 @@
+package pfennig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * applies the numbered SQL migrations from src/main/resources/db/migrations at startup
+ * and records the applied versions in the schema_migrations table.
+ *
+ * migrations are applied in order and each one in its own transaction. never change a migration
+ * that has been released, add a new one instead.
+ */
+public class Migrations {
+    static Logger logger = LoggerFactory.getLogger(Migrations.class.getName());
+
+    static final String[] MIGRATIONS = {
+        "001_create_tables.sql",
+        "002_lookup_indexes.sql",
+        "003_payment_aggregates.sql",
+        "004_notifications.sql",
+        "005_confirmation_tracking.sql",
+        "006_payment_height_index.sql",
+        "007_payment_per_output.sql",
+        "008_invoice_listing_indexes.sql",
+        "009_notification_transaction_hash.sql",
+    };
+
+    private EbeanServer databaseConnnection;
+
+    public Migrations(EbeanServer databaseConnnection) {
+        this.databaseConnnection = databaseConnnection;
+    }
+
+    /**
+     * forgets all applied migrations. used when the schema got recreated by ebean (DATABASE_DDL_RUN)
+     */
+    public void reset() throws SQLException {
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            Statement statement = transaction.getConnection().createStatement();
+            statement.execute("drop table if exists schema_migrations");
+            statement.close();
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+    }
+
+    public void migrate() throws SQLException, IOException {
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            Statement statement = transaction.getConnection().createStatement();
+            statement.execute("create table if not exists schema_migrations (version integer not null, name varchar(255) not null, applied_at timestamp not null, constraint pk_schema_migrations primary key (version))");
+            statement.close();
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+
+        for (String migration : MIGRATIONS) {
+            this.apply(migration);
+        }
+    }
+
+    private void apply(String migration) throws SQLException, IOException {
+        int version = Migrations.versionOf(migration);
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            Connection connection = transaction.getConnection();
+            Statement statement = connection.createStatement();
+            // serializes concurrently starting instances, the lock is released on commit
+            statement.execute("lock table schema_migrations in exclusive mode");
+            if (Migrations.appliedVersions(connection).contains(version)) {
+                statement.close();
+                return;
+            }
+
+            logger.info("applying migration {}", migration);
+            try {
+                statement.execute(Migrations.load(migration));
+            } catch (SQLException e) {
+                logger.error("migration {} failed: {}", migration, e.getMessage());
+                throw e;
+            }
+            statement.close();
+
+            PreparedStatement insert = connection.prepareStatement("insert into schema_migrations (version, name, applied_at) values (?, ?, ?)");
+            insert.setInt(1, version);
+            insert.setString(2, migration);
+            insert.setTimestamp(3, new Timestamp(new java.util.Date().getTime()));
+            insert.executeUpdate();
+            insert.close();
+
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+    }
+
+    private static Set<Integer> appliedVersions(Connection connection) throws SQLException {
+        Set<Integer> versions = new HashSet<Integer>();
+        Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery("select version from schema_migrations");
+        while (result.next()) {
+            versions.add(result.getInt(1));
+        }
+        result.close();
+        statement.close();
+        return versions;
+    }
+
+    static int versionOf(String migration) {
+        return Integer.parseInt(migration.substring(0, migration.indexOf('_')));
+    }
+
+    static String load(String migration) throws IOException {
+        InputStream in = Migrations.class.getResourceAsStream("/db/migrations/" + migration);
+        if (in == null) {
+            throw new IOException("missing migration " + migration);
+        }
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package pfennig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.annotation.CreatedTimestamp;
+
+/**
+ * a webhook notification in the outbox. notifications are written in the same transaction as the
+ * payment that caused them and delivered by the NotificationDispatcher.
+ */
+@Entity
+@Table(name = "notifications")
+public class Notification {
+    static EbeanServer databaseConnnection;
+    static Logger logger = LoggerFactory.getLogger(Notification.class.getName());
+    static final Metrics.Histogram FIND_BY_IDS_QUERIES = Metrics.query("Notification.findByIds");
+
+    @Id
+    Integer id;
+
+    String url;
+
+    @Lob
+    String body;
+
+    Integer attempts;
+
+    @Column(name = "next_attempt_at")
+    Timestamp nextAttemptAt;
+
+    @Column(name = "delivered_at")
+    Timestamp deliveredAt;
+
+    // set once we give up delivering the notification
+    @Column(name = "failed_at")
+    Timestamp failedAt;
+
+    @Column(name = "last_error")
+    String lastError;
+
+    @CreatedTimestamp
+    @Column(name = "created_at")
+    Timestamp createdAt;
+
+    // the transaction that caused the notification, see Tracer
+    @Column(name = "transaction_hash")
+    String transactionHash;
+
+    /**
+     * a notification that is due now, not written yet
+     */
+    static Notification create(String url, String body, String transactionHash) {
+        Notification notification = new Notification();
+        notification.setUrl(url.trim());
+        notification.setBody(body);
+        notification.setTransactionHash(transactionHash);
+        notification.setAttempts(0);
+        notification.setNextAttemptAt(new Timestamp(new java.util.Date().getTime()));
+        return notification;
+    }
+
+    /**
+     * writes a notification to the outbox. joins the current transaction if there is one.
+     * call NotificationDispatcher.wakeUp() once the transaction is committed.
+     */
+    public static Notification enqueue(String url, String body, String transactionHash) {
+        Notification notification = Notification.create(url, body, transactionHash);
+        Notification.databaseConnnection.save(notification);
+        return notification;
+    }
+
+    /**
+     * writes notifications to the outbox with a single statement on the connection of the current transaction.
+     * call NotificationDispatcher.wakeUp() once the transaction is committed.
+     */
+    static void enqueueAll(Connection connection, List<Notification> notifications) throws SQLException {
+        if (notifications.isEmpty()) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder("insert into notifications (id, url, body, attempts, next_attempt_at, created_at, transaction_hash) values ");
+        for (int i = 0; i < notifications.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(nextval('notifications_seq'), ?, ?, ?, ?, now(), ?)");
+        }
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        try {
+            int index = 1;
+            for (Notification notification : notifications) {
+                statement.setString(index++, notification.getUrl());
+                statement.setString(index++, notification.getBody());
+                statement.setInt(index++, notification.getAttempts());
+                statement.setTimestamp(index++, notification.getNextAttemptAt());
+                statement.setString(index++, notification.getTransactionHash());
+            }
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    public static List<Notification> findByIds(List<Integer> ids) {
+        long start = System.nanoTime();
+        List<Notification> notifications = Notification.databaseConnnection.find(Notification.class).where().in("id", ids).findList();
+        FIND_BY_IDS_QUERIES.observeSince(start);
+        return notifications;
+    }
+
+    public void markAsDelivered() {
+        this.setDeliveredAt(new Timestamp(new java.util.Date().getTime()));
+        this.setLastError(null);
+        Notification.databaseConnnection.save(this);
+    }
+
+    public void markAsFailed(String error, long retryAt, int maxAttempts) {
+        this.setAttempts(this.getAttempts() + 1);
+        this.setLastError(error == null || error.length() <= 255 ? error : error.substring(0, 255));
+        if (this.getAttempts() >= maxAttempts) {
+            logger.error("giving up notification {} to {} after {} attempts", this.getId(), this.getUrl(), this.getAttempts());
+            this.setFailedAt(new Timestamp(new java.util.Date().getTime()));
+        } else {
+            this.setNextAttemptAt(new Timestamp(retryAt));
+        }
+        Notification.databaseConnnection.save(this);
+    }
+
+    /**
+     * puts the notification back into the queue without counting it as an attempt
+     */
+    public void postpone(long retryAt) {
+        this.setNextAttemptAt(new Timestamp(retryAt));
+        Notification.databaseConnnection.save(this);
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public void setBody(String body) {
+        this.body = body;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public Timestamp getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(Timestamp nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public Timestamp getDeliveredAt() {
+        return deliveredAt;
+    }
+
+    public void setDeliveredAt(Timestamp deliveredAt) {
+        this.deliveredAt = deliveredAt;
+    }
+
+    public Timestamp getFailedAt() {
+        return failedAt;
+    }
+
+    public void setFailedAt(Timestamp failedAt) {
+        this.failedAt = failedAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Timestamp getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Timestamp createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getTransactionHash() {
+        return transactionHash;
+    }
+
+    public void setTransactionHash(String transactionHash) {
+        this.transactionHash = transactionHash;
+    }
+}
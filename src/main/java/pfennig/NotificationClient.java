@@ -0,0 +1,160 @@
+package pfennig;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+/**
+ * the HTTP client used to deliver notifications.
+ *
+ * connections are kept alive and reused per host, requests have connect and read timeouts and every host
+ * gets a circuit breaker so that a failing merchant endpoint does not keep the delivery workers busy.
+ */
+public class NotificationClient {
+    static Logger logger = LoggerFactory.getLogger(NotificationClient.class.getName());
+    static final MediaType JSON = MediaType.parse("application/json");
+
+    static final int MAX_IDLE_CONNECTIONS = 32;
+    static final long KEEP_ALIVE_TIME = 5 * 60 * 1000; // in milliseconds
+    static final int FAILURE_THRESHOLD = 5;
+    static final long CIRCUIT_OPEN_TIME = 60 * 1000; // in milliseconds
+
+    private OkHttpClient client;
+    private ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    public NotificationClient(long connectTimeout, long readTimeout) {
+        this.client = new OkHttpClient();
+        this.client.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_TIME));
+        this.client.setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        this.client.setReadTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        this.client.setWriteTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        // retries are done by the NotificationDispatcher
+        this.client.setRetryOnConnectionFailure(false);
+    }
+
+    /**
+     * the outcome of a notification request
+     */
+    public static class Result {
+        public final boolean delivered;
+        // the circuit of the host is open, no request was made
+        public final boolean hostUnavailable;
+        public final String error;
+        public final long retryAt;
+
+        Result(boolean delivered, boolean hostUnavailable, String error, long retryAt) {
+            this.delivered = delivered;
+            this.hostUnavailable = hostUnavailable;
+            this.error = error;
+            this.retryAt = retryAt;
+        }
+    }
+
+    /**
+     * circuit breaker and counters of a single notification host
+     */
+    static class Host {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(FAILURE_THRESHOLD, CIRCUIT_OPEN_TIME);
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong totalLatency = new AtomicLong(); // in milliseconds
+        final AtomicLong maxLatency = new AtomicLong(); // in milliseconds
+
+        void recordLatency(long latency) {
+            this.totalLatency.addAndGet(latency);
+            long max;
+            do {
+                max = this.maxLatency.get();
+            } while (latency > max && !this.maxLatency.compareAndSet(max, latency));
+        }
+
+        Map<String, Object> getStats() {
+            Map<String, Object> stats = new JSONObject();
+            long requests = this.requests.get();
+            stats.put("requests", requests);
+            stats.put("failures", this.failures.get());
+            stats.put("averageLatency", requests == 0 ? 0 : this.totalLatency.get() / requests);
+            stats.put("maxLatency", this.maxLatency.get());
+            stats.put("circuit", this.circuitBreaker.getState().toString());
+            return stats;
+        }
+    }
+
+    public Result send(String url, String body) {
+        Host host = this.hostFor(url);
+        if (!host.circuitBreaker.allowRequest()) {
+            return new Result(false, true, "circuit open", host.circuitBreaker.getRetryAt());
+        }
+
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            Request.Builder request = new Request.Builder().url(url).post(RequestBody.create(JSON, body));
+            if (Utils.HMAC_KEY != null && !Utils.HMAC_KEY.isEmpty()) {
+                request.header("X-PFENNIG-VERIFICATION", Utils.calculateHMAC(body));
+            }
+            Response response = this.client.newCall(request.build()).execute();
+            // reading the body releases the connection back into the pool
+            String responseBody = response.body().string();
+            if (response.isSuccessful()) {
+                logger.info("notification successful url: {}", url);
+                logger.debug("notification response: {}", responseBody);
+            } else {
+                error = "status " + response.code();
+                logger.error("notification failed url: {} status: {}", url, response.code());
+                logger.debug("notification response body: {}", responseBody);
+            }
+        } catch (Exception e) {
+            error = e.getClass().getSimpleName() + ": " + e.getMessage();
+            logger.error("notification failed url: {} - {}", url, e.getMessage());
+        }
+
+        host.requests.incrementAndGet();
+        host.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (error == null) {
+            host.circuitBreaker.recordSuccess();
+            return new Result(true, false, null, 0);
+        } else {
+            host.failures.incrementAndGet();
+            host.circuitBreaker.recordFailure();
+            return new Result(false, false, error, 0);
+        }
+    }
+
+    /**
+     * @return per host request and failure counters, latencies in milliseconds and the state of the circuit
+     */
+    public Map<String, Object> getHostStats() {
+        Map<String, Object> stats = new JSONObject();
+        for (Map.Entry<String, Host> host : this.hosts.entrySet()) {
+            stats.put(host.getKey(), host.getValue().getStats());
+        }
+        return stats;
+    }
+
+    private Host hostFor(String url) {
+        return this.hosts.computeIfAbsent(NotificationClient.hostOf(url), key -> new Host());
+    }
+
+    static String hostOf(String url) {
+        try {
+            URI uri = new URI(url);
+            return uri.getHost() + ":" + uri.getPort();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
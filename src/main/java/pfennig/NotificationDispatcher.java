@@ -0,0 +1,203 @@
+package pfennig;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * delivers the notifications from the outbox (see Notification) with a pool of workers.
+ *
+ * due notifications are claimed from the database by leasing them (moving next_attempt_at into the future),
+ * so a notification whose worker died is picked up again once the lease expired. failed deliveries are
+ * retried with exponential backoff and the number of concurrent requests per host is limited. while the circuit
+ * of a host is open (see NotificationClient) its notifications are postponed without counting as an attempt.
+ */
+public class NotificationDispatcher {
+    public static NotificationDispatcher instance;
+    static Logger logger = LoggerFactory.getLogger(NotificationDispatcher.class.getName());
+
+    static final long POLL_INTERVAL = 1000; // in milliseconds
+    static final long LEASE_TIME = 60 * 1000; // in milliseconds
+    static final long HOST_BUSY_DELAY = 1000; // in milliseconds
+    static final long BASE_BACKOFF = 5 * 1000; // in milliseconds
+    static final long MAX_BACKOFF = 60 * 60 * 1000; // in milliseconds
+
+    static final Metrics.Histogram REQUEST_DURATION = Metrics.histogram("pfennig_webhook_request_duration_seconds",
+            "duration of notification requests");
+    static final Metrics.Histogram DELIVERY_LATENCY = Metrics.histogram("pfennig_webhook_delivery_latency_seconds",
+            "time from a notification being queued to its delivery");
+    static final Metrics.Counter DELIVERED = Metrics.counter("pfennig_webhook_requests_total", "notification requests by result", "result", "delivered");
+    static final Metrics.Counter FAILED = Metrics.counter("pfennig_webhook_requests_total", "notification requests by result", "result", "failed");
+    static final Metrics.Counter HOST_UNAVAILABLE = Metrics.counter("pfennig_webhook_requests_total", "notification requests by result", "result", "host_unavailable");
+    static final Metrics.Counter GIVEN_UP = Metrics.counter("pfennig_webhook_given_up_total", "notifications not retried after maxAttempts");
+
+    private EbeanServer databaseConnnection;
+    private NotificationClient client;
+    private int workers;
+    private int hostConcurrency;
+    private int maxAttempts;
+
+    private ScheduledExecutorService poller;
+    private ExecutorService deliveryPool;
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicBoolean wakeUpPending = new AtomicBoolean();
+    private ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    public NotificationDispatcher(EbeanServer databaseConnnection, NotificationClient client, int workers, int hostConcurrency, int maxAttempts) {
+        this.databaseConnnection = databaseConnnection;
+        this.client = client;
+        this.workers = workers;
+        this.hostConcurrency = hostConcurrency;
+        this.maxAttempts = maxAttempts;
+        this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("notification-poller").setDaemon(true).build());
+        this.deliveryPool = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setNameFormat("notification-worker-%d").setDaemon(true).build());
+        Metrics.gauge("pfennig_webhook_in_flight", "notifications claimed and not yet sent", this.inFlight::get);
+    }
+
+    public void start() {
+        this.poller.scheduleWithFixedDelay(this::poll, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        this.poller.shutdown();
+        this.deliveryPool.shutdown();
+    }
+
+    /**
+     * triggers a poll right away instead of waiting for the next interval. used after new notifications got committed.
+     */
+    public static void wakeUp() {
+        NotificationDispatcher dispatcher = NotificationDispatcher.instance;
+        if (dispatcher != null && dispatcher.wakeUpPending.compareAndSet(false, true)) {
+            dispatcher.poller.execute(() -> {
+                dispatcher.wakeUpPending.set(false);
+                dispatcher.poll();
+            });
+        }
+    }
+
+    void poll() {
+        try {
+            // keep the queue of the workers short, everything else stays in the outbox
+            int capacity = this.workers * 2 - this.inFlight.get();
+            if (capacity <= 0) {
+                return;
+            }
+            for (Notification notification : this.claim(capacity)) {
+                this.inFlight.incrementAndGet();
+                this.deliveryPool.execute(() -> this.deliver(notification));
+            }
+        } catch (Exception e) {
+            logger.error("failed to poll notifications: {}", e.getMessage());
+        }
+    }
+
+    private List<Notification> claim(int limit) throws SQLException {
+        long now = new java.util.Date().getTime();
+        List<Integer> ids = new ArrayList<Integer>();
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            PreparedStatement statement = transaction.getConnection().prepareStatement(
+                    "update notifications set next_attempt_at = ? where id in ("
+                    + "select id from notifications where delivered_at is null and failed_at is null and next_attempt_at <= ? "
+                    + "order by next_attempt_at limit ? for update skip locked) returning id");
+            statement.setTimestamp(1, new Timestamp(now + LEASE_TIME));
+            statement.setTimestamp(2, new Timestamp(now));
+            statement.setInt(3, limit);
+            ResultSet result = statement.executeQuery();
+            while (result.next()) {
+                ids.add(result.getInt(1));
+            }
+            result.close();
+            statement.close();
+            transaction.commit();
+        } finally {
+            transaction.end();
+        }
+
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Notification.findByIds(ids);
+    }
+
+    void deliver(Notification notification) {
+        try {
+            Semaphore permits = this.hostPermits.computeIfAbsent(NotificationClient.hostOf(notification.getUrl()), host -> new Semaphore(this.hostConcurrency));
+            if (!permits.tryAcquire()) {
+                notification.postpone(new java.util.Date().getTime() + HOST_BUSY_DELAY);
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                if (notification.getCreatedAt() != null) {
+                    long queued = new java.util.Date().getTime() - notification.getCreatedAt().getTime();
+                    Tracer.recordAt(notification.getTransactionHash(), "notification queue", "attempt " + (notification.getAttempts() + 1),
+                            notification.getCreatedAt().getTime(), TimeUnit.MILLISECONDS.toNanos(Math.max(queued, 0)));
+                }
+                NotificationClient.Result result = this.client.send(notification.getUrl(), notification.getBody());
+                Tracer.record(notification.getTransactionHash(), "notification", result.delivered ? "delivered"
+                        : result.hostUnavailable ? "host unavailable" : "failed: " + result.error, start, System.nanoTime());
+                if (result.delivered) {
+                    REQUEST_DURATION.observeSince(start);
+                    DELIVERED.inc();
+                    notification.markAsDelivered();
+                    if (notification.getCreatedAt() != null) {
+                        long queued = new java.util.Date().getTime() - notification.getCreatedAt().getTime();
+                        DELIVERY_LATENCY.observe(TimeUnit.MILLISECONDS.toNanos(Math.max(queued, 0)));
+                    }
+                } else if (result.hostUnavailable) {
+                    HOST_UNAVAILABLE.inc();
+                    // while a trial request is running the retry time of the circuit has already passed
+                    notification.postpone(Math.max(result.retryAt, new java.util.Date().getTime() + HOST_BUSY_DELAY));
+                } else {
+                    REQUEST_DURATION.observeSince(start);
+                    FAILED.inc();
+                    long retryAt = new java.util.Date().getTime() + NotificationDispatcher.backoff(notification.getAttempts() + 1);
+                    notification.markAsFailed(result.error, retryAt, this.maxAttempts);
+                    if (notification.getFailedAt() != null) {
+                        GIVEN_UP.inc();
+                    }
+                }
+            } finally {
+                permits.release();
+            }
+        } catch (Exception e) {
+            // the lease expires and the notification will be picked up again
+            logger.error("failed to deliver notification {}: {}", notification.getId(), e.getMessage());
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * exponential backoff with some jitter so that retries to the same host do not line up
+     *
+     * @return delay in milliseconds before the given attempt
+     */
+    static long backoff(int attempt) {
+        long delay = BASE_BACKOFF << Math.min(attempt - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF);
+        return delay + ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+    }
+}
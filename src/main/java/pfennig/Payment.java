@@ -17,9 +17,6 @@ import net.sf.oval.constraint.NotEmpty;
 import net.sf.oval.constraint.NotNull;
 
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.core.Transaction;
-import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
-import org.bitcoinj.core.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +29,8 @@ import com.avaje.ebean.annotation.CreatedTimestamp;
 public class Payment {
     static EbeanServer databaseConnnection;
     static Logger logger = LoggerFactory.getLogger(Payment.class.getName());
+    static final Metrics.Histograms FIND_BY_QUERIES = Metrics.queries("Payment.findBy");
+    static final Metrics.Histogram FIND_BY_ADDRESS_HASH_QUERIES = Metrics.query("Payment.findByAddressHash");
 
     @Id
     Integer id;
@@ -41,7 +40,7 @@ public class Payment {
     @Column(name = "received_satoshi_value")
     Long receivedSatoshiValue;
 
-    // TODO: validate uniqueness
+    // unique per address hash, see the index in 007_payment_per_output.sql
     @Column(name = "transaction_hash")
     String transactionHash;
 
@@ -58,44 +57,41 @@ public class Payment {
     @Column(name = "paid_at")
     Timestamp paidAt;
 
+    // set once the last confirmation threshold is reached, see ConfirmationTracker
     @Column(name = "confirmed_at")
     Timestamp confirmedAt;
 
-    @Transient
-    List<ConstraintViolation> violations;
-
-    public static List<Payment> findByAddressHash(String addressHash) {
-        return Ebean.find(Payment.class).where().eq("address_hash", addressHash.trim()).order("id DESC").findList();
-    }
+    @Column(name = "confirmations_notified")
+    Integer confirmationsNotified;
 
-    public static Payment create(String address_hash, Transaction tx, Wallet wallet) {
-        Payment payment;
+    @Column(name = "next_confirmation_height")
+    Integer nextConfirmationHeight;
 
-        // check if we already have a payment
-        payment = Payment.findByTransactionHash(tx.getHashAsString());
-        if (payment != null) {
-            return payment;
-        }
+    @Transient
+    List<ConstraintViolation> violations;
 
-        payment = new Payment();
-        payment.setAddressHash(address_hash);
-        if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-            payment.setAppearedAtChainHeight(tx.getConfidence().getAppearedAtChainHeight());
-        }
-        payment.setTransactionHash(tx.getHashAsString());
-        payment.setReceivedSatoshiValue(tx.getValue(wallet).getValue());
-        payment.setPaidAt(new Timestamp(new java.util.Date().getTime()));
-        payment.save();
-        payment.notifyPaid();
+    // the owner of the payment address, loaded once
+    @Transient
+    boolean ownerLoaded = false;
+    @Transient
+    Invoice invoice;
+    @Transient
+    WatchingAddress watchingAddress;
 
-        return payment;
+    public static List<Payment> findByAddressHash(String addressHash) {
+        long start = System.nanoTime();
+        List<Payment> payments = Ebean.find(Payment.class).where().eq("address_hash", addressHash.trim()).order("id DESC").findList();
+        FIND_BY_ADDRESS_HASH_QUERIES.observeSince(start);
+        return payments;
     }
 
     public static Payment findBy(String attribute, String value) {
         if (value == null) {
             return null;
         }
+        long start = System.nanoTime();
         List<Payment> payments = Ebean.find(Payment.class).where().eq(attribute, value.trim()).setMaxRows(1).findList();
+        FIND_BY_QUERIES.get(attribute).observeSince(start);
         if (payments.isEmpty())
             return null;
         return payments.get(0);
@@ -105,45 +101,52 @@ public class Payment {
         return Payment.findBy("transaction_hash", transactionHash);
     }
 
-    public void markAsConfirmed(String addressHash, Transaction tx, Wallet wallet) {
-        if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-            this.setAppearedAtChainHeight(tx.getConfidence().getAppearedAtChainHeight());
-            this.setConfirmedAt(new Timestamp(new java.util.Date().getTime()));
-            this.save();
-            this.notifyConfirmed();
-        }
-    }
-
     public void notifyConfirmed() {
         Invoice invoice = this.getInvoice();
         WatchingAddress watchingAddress = this.getWatchingAddress();
         if (invoice != null) {
-            invoice.sendNotification();
+            invoice.enqueueNotification(this.getTransactionHash());
         } else if (watchingAddress != null) {
-            watchingAddress.sendNotification();
+            watchingAddress.enqueueNotification(this.getTransactionHash());
         }
     }
     public void notifyPaid() {
         Invoice invoice = this.getInvoice();
         WatchingAddress watchingAddress = this.getWatchingAddress();
         if (invoice != null) {
-            invoice.sendNotification();
+            invoice.enqueueNotification(this.getTransactionHash());
         } else if (watchingAddress != null) {
-            watchingAddress.sendNotification();
+            watchingAddress.enqueueNotification(this.getTransactionHash());
         } else {
-            logger.info("not invoice or watchingAddress found for: " + this.getAddressHash());
+            logger.info("not invoice or watchingAddress found for: {}", this.getAddressHash());
         }
     }
 
     public boolean save() {
         if (this.isValid()) {
             Payment.databaseConnnection.save(this);
+            this.updateOwnerAggregates();
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * keeps the payment aggregates of the invoice or watching address that owns the payment address up to date
+     */
+    public void updateOwnerAggregates() {
+        Invoice invoice = this.getInvoice();
+        if (invoice != null) {
+            invoice.refreshPaymentAggregates();
+            return;
+        }
+        WatchingAddress watchingAddress = this.getWatchingAddress();
+        if (watchingAddress != null) {
+            watchingAddress.refreshReceivedSatoshi();
+        }
+    }
+
     public boolean isValid() {
         Validator validator = new Validator();
         this.violations = validator.validate(this);
@@ -151,11 +154,40 @@ public class Payment {
     }
 
     public Invoice getInvoice() {
-        return Invoice.findByAddressHash(this.getAddressHash());
+        this.loadOwner();
+        return this.invoice;
     }
 
     public WatchingAddress getWatchingAddress() {
-        return WatchingAddress.findByAddressHash(this.getAddressHash());
+        this.loadOwner();
+        return this.watchingAddress;
+    }
+
+    /**
+     * looks up the owner of the payment address in the address index and loads it by its id.
+     * addresses that are not in the index are not ours, thus nothing is queried for them.
+     */
+    private void loadOwner() {
+        if (this.ownerLoaded) {
+            return;
+        }
+        this.ownerLoaded = true;
+        if (AddressIndex.instance == null) {
+            this.invoice = Invoice.findByAddressHash(this.getAddressHash());
+            if (this.invoice == null) {
+                this.watchingAddress = WatchingAddress.findByAddressHash(this.getAddressHash());
+            }
+            return;
+        }
+        AddressIndex.Owner owner = AddressIndex.instance.ownerOf(this.getAddressHash());
+        if (owner == null) {
+            return;
+        }
+        if (owner.type == AddressIndex.OwnerType.INVOICE) {
+            this.invoice = Payment.databaseConnnection.find(Invoice.class, owner.id);
+        } else {
+            this.watchingAddress = Payment.databaseConnnection.find(WatchingAddress.class, owner.id);
+        }
     }
 
     public Integer getConfidence() {
@@ -246,4 +278,12 @@ public class Payment {
     public void setConfirmedAt(Timestamp confirmedAt) {
         this.confirmedAt = confirmedAt;
     }
+
+    public Integer getConfirmationsNotified() {
+        return confirmationsNotified;
+    }
+
+    public Integer getNextConfirmationHeight() {
+        return nextConfirmationHeight;
+    }
 }
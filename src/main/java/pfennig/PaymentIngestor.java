@@ -0,0 +1,414 @@
+package pfennig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+/**
+ * writes received payments to the database off the wallet event thread.
+ *
+ * the wallet listener only turns a transaction into a small event and puts it into a bounded queue. a single
+ * consumer drains the queue in batches and inserts each batch with one multi-row statement. the unique index on
+ * payments (transaction_hash, address_hash) makes the insert idempotent: payments we already know are skipped by
+ * the database.
+ * the aggregates and notifications of the owners of the inserted payments are written in the same transaction, again
+ * with one statement each for the whole batch.
+ *
+ * if the queue is full the wallet thread waits. a batch that fails is written again with exponential backoff; while
+ * the database is unavailable no new payments are taken, so the queue fills up and the wallet waits as well.
+ * payments failing with any other error are written one by one, and only a payment that still fails after
+ * MAX_ATTEMPTS is dropped (logged as error and counted in pfennig_payment_dropped_total).
+ */
+public class PaymentIngestor {
+    static Logger logger = LoggerFactory.getLogger(PaymentIngestor.class.getName());
+    static final Metrics.Histogram QUEUE_LAG = Metrics.histogram("pfennig_payment_queue_lag_seconds",
+            "time from the wallet seeing a payment to the payment being written");
+    static final Metrics.Histogram BATCH_DURATION = Metrics.histogram("pfennig_payment_batch_duration_seconds",
+            "duration of writing a batch of payments");
+    static final Metrics.Counter DROPPED = Metrics.counter("pfennig_payment_dropped_total",
+            "payments not written after MAX_ATTEMPTS");
+
+    static final int MAX_ATTEMPTS = 10;
+    static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+
+    private EbeanServer databaseConnnection;
+    private LinkedBlockingQueue<Event> events;
+    private int batchSize;
+    private Thread consumer;
+    private volatile boolean running = false;
+    // failed events written again with the next batch, only touched by the consumer
+    private List<Event> retries = new ArrayList<Event>();
+    // batches failed in a row, for the backoff
+    private int failures = 0;
+
+    private AtomicLong received = new AtomicLong();
+    private AtomicLong inserted = new AtomicLong();
+    private AtomicLong batches = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+
+    /**
+     * a payment to one of our addresses as seen by the wallet. a transaction paying several of our addresses
+     * results in one event per address
+     */
+    public static class Event {
+        public final String addressHash;
+        public final String transactionHash;
+        public final long receivedSatoshiValue;
+        public final Integer appearedAtChainHeight;
+        public final Timestamp paidAt;
+        // System.nanoTime() when the wallet saw the payment
+        final long seenAt = System.nanoTime();
+        // set once the payment is written
+        Integer paymentId;
+        // failed attempts to write the payment
+        int attempts = 0;
+
+        public Event(String addressHash, String transactionHash, long receivedSatoshiValue, Integer appearedAtChainHeight, Timestamp paidAt) {
+            this.addressHash = addressHash;
+            this.transactionHash = transactionHash;
+            this.receivedSatoshiValue = receivedSatoshiValue;
+            this.appearedAtChainHeight = appearedAtChainHeight;
+            this.paidAt = paidAt;
+        }
+
+        /**
+         * @return one event per address and the total value sent to it by the transaction
+         */
+        public static List<Event> fromTransaction(org.bitcoinj.core.Transaction tx, Map<String, Long> valuesByAddress) {
+            Integer height = null;
+            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                height = tx.getConfidence().getAppearedAtChainHeight();
+            }
+            Timestamp paidAt = new Timestamp(new java.util.Date().getTime());
+            List<Event> events = new ArrayList<Event>(valuesByAddress.size());
+            for (Map.Entry<String, Long> value : valuesByAddress.entrySet()) {
+                events.add(new Event(value.getKey(), tx.getHashAsString(), value.getValue(), height, paidAt));
+            }
+            return events;
+        }
+
+        String getKey() {
+            return this.transactionHash + " " + this.addressHash;
+        }
+    }
+
+    public PaymentIngestor(EbeanServer databaseConnnection, int capacity, int batchSize) {
+        this.databaseConnnection = databaseConnnection;
+        this.events = new LinkedBlockingQueue<Event>(capacity);
+        this.batchSize = batchSize;
+        Metrics.gauge("pfennig_payment_queue_depth", "payments waiting to be written", this::getDepth);
+    }
+
+    public void start() {
+        this.running = true;
+        this.consumer = new Thread(this::consume, "payment-ingestor");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * stops taking new events once the queue is drained
+     */
+    public void stop() throws InterruptedException {
+        this.running = false;
+        this.consumer.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * queues payments. blocks while the queue is full
+     */
+    public void submit(List<Event> events) {
+        for (Event event : events) {
+            try {
+                this.events.put(event);
+                this.received.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("interrupted while queueing payment {} to {}", event.transactionHash, event.addressHash);
+                return;
+            }
+        }
+    }
+
+    private void consume() {
+        List<Event> batch = new ArrayList<Event>(this.batchSize);
+        while (this.running || !this.events.isEmpty() || !this.retries.isEmpty()) {
+            try {
+                if (this.failures > 0) {
+                    Thread.sleep(PaymentIngestor.backoff(this.failures));
+                }
+                batch.addAll(this.retries);
+                this.retries.clear();
+                if (batch.isEmpty()) {
+                    Event event = this.events.poll(1, TimeUnit.SECONDS);
+                    if (event == null) {
+                        continue;
+                    }
+                    batch.add(event);
+                }
+                this.events.drainTo(batch, this.batchSize - batch.size());
+                this.ingest(batch);
+                this.failures = 0;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("failed to ingest {} payments: {}", batch.size(), e.getMessage());
+                this.failures++;
+                this.retryLater(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * queues the events of a failed batch for the next attempt. if the database is available the events are written
+     * one by one first, so a single broken payment does not hold back the others
+     */
+    private void retryLater(List<Event> batch, Exception error) {
+        if (PaymentIngestor.isTransient(error) || batch.size() == 1) {
+            for (Event event : batch) {
+                this.retryLater(event, error);
+            }
+        } else {
+            for (Event event : batch) {
+                try {
+                    this.ingest(Collections.singletonList(event));
+                } catch (Exception retryError) {
+                    this.retryLater(event, retryError);
+                }
+            }
+        }
+        if (this.retries.isEmpty()) {
+            this.failures = 0;
+        }
+    }
+
+    private void retryLater(Event event, Exception error) {
+        if (PaymentIngestor.isTransient(error)) {
+            // the database is not available, the payment is not at fault
+            this.retries.add(event);
+            return;
+        }
+        event.attempts++;
+        if (event.attempts < MAX_ATTEMPTS) {
+            this.retries.add(event);
+            return;
+        }
+        this.dropped.incrementAndGet();
+        DROPPED.inc();
+        logger.error("dropping payment {} of {} satoshi to {} after {} attempts: {}", event.transactionHash,
+                event.receivedSatoshiValue, event.addressHash, event.attempts, error.getMessage(), error);
+    }
+
+    /**
+     * @return true if the error is caused by the database being unavailable rather than by the payment
+     */
+    static boolean isTransient(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                // connection exception, transaction rollback, insufficient resources, operator intervention
+                if (state != null && (state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * exponential backoff, as for notifications
+     *
+     * @return delay in milliseconds after the given number of failed batches
+     */
+    static long backoff(int failures) {
+        return Math.min(BASE_BACKOFF << Math.min(failures - 1, 20), MAX_BACKOFF);
+    }
+
+    void ingest(List<Event> batch) throws SQLException {
+        long start = System.nanoTime();
+        Transaction transaction = this.databaseConnnection.beginTransaction();
+        try {
+            List<Event> insertedEvents = this.insert(transaction.getConnection(), batch);
+            long insertedAt = System.nanoTime();
+            Map<String, Payment> owners = this.updateOwners(transaction.getConnection(), insertedEvents);
+            long ownersUpdatedAt = System.nanoTime();
+            this.databaseConnnection.commitTransaction();
+            this.batches.incrementAndGet();
+            this.inserted.addAndGet(insertedEvents.size());
+            long committedAt = System.nanoTime();
+            BATCH_DURATION.observe(committedAt - start);
+            for (Event event : batch) {
+                QUEUE_LAG.observe(committedAt - event.seenAt);
+                Tracer.record(event.transactionHash, "queue", null, event.seenAt, start);
+            }
+            String batchSize = batch.size() + " payments";
+            for (Event event : insertedEvents) {
+                Tracer.record(event.transactionHash, "insert", batchSize, start, insertedAt);
+                Tracer.record(event.transactionHash, "owners", batchSize, insertedAt, ownersUpdatedAt);
+                Tracer.record(event.transactionHash, "commit", batchSize, ownersUpdatedAt, committedAt);
+            }
+            logger.debug("ingested {} of {} payments", insertedEvents.size(), batch.size());
+            this.track(insertedEvents, owners);
+            for (Payment owner : owners.values()) {
+                InvoiceEvents.publish(owner.getInvoice());
+            }
+        } finally {
+            this.databaseConnnection.endTransaction();
+        }
+        NotificationDispatcher.wakeUp();
+    }
+
+    /**
+     * inserts all payments with a single statement
+     *
+     * @return the events that were not in the database yet
+     */
+    private List<Event> insert(Connection connection, List<Event> batch) throws SQLException {
+        StringBuilder sql = new StringBuilder("insert into payments (id, received_satoshi_value, transaction_hash, appeared_at_chain_height, address_hash, paid_at, created_at) values ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(nextval('payments_seq'), ?, ?, ?, ?, ?, now())");
+        }
+        sql.append(" on conflict (transaction_hash, address_hash) do nothing returning id, transaction_hash, address_hash");
+
+        Map<String, Event> byKey = new LinkedHashMap<String, Event>();
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        try {
+            int index = 1;
+            for (Event event : batch) {
+                statement.setLong(index++, event.receivedSatoshiValue);
+                statement.setString(index++, event.transactionHash);
+                if (event.appearedAtChainHeight == null) {
+                    statement.setNull(index++, Types.INTEGER);
+                } else {
+                    statement.setInt(index++, event.appearedAtChainHeight);
+                }
+                statement.setString(index++, event.addressHash);
+                statement.setTimestamp(index++, event.paidAt);
+                byKey.put(event.getKey(), event);
+            }
+            ResultSet result = statement.executeQuery();
+            List<Event> insertedEvents = new ArrayList<Event>();
+            while (result.next()) {
+                Event event = byKey.get(result.getString(2) + " " + result.getString(3));
+                event.paymentId = result.getInt(1);
+                insertedEvents.add(event);
+            }
+            result.close();
+            return insertedEvents;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * refreshes the aggregates and queues one notification per owner, even if it received several payments in the batch
+     *
+     * @return the owners by address hash
+     */
+    private Map<String, Payment> updateOwners(Connection connection, List<Event> insertedEvents) throws SQLException {
+        Map<String, Payment> byAddressHash = new LinkedHashMap<String, Payment>();
+        for (Event event : insertedEvents) {
+            if (byAddressHash.containsKey(event.addressHash)) {
+                continue;
+            }
+            Payment payment = new Payment();
+            payment.setAddressHash(event.addressHash);
+            payment.setTransactionHash(event.transactionHash);
+            payment.ownerLoaded = true;
+            byAddressHash.put(event.addressHash, payment);
+        }
+        if (byAddressHash.isEmpty()) {
+            return byAddressHash;
+        }
+        List<String> addressHashes = new ArrayList<String>(byAddressHash.keySet());
+        Invoice.refreshPaymentAggregates(connection, addressHashes);
+        WatchingAddress.refreshReceivedSatoshi(connection, addressHashes);
+
+        List<Notification> notifications = new ArrayList<Notification>();
+        for (Invoice invoice : Invoice.findByAddressHashes(addressHashes)) {
+            Payment payment = byAddressHash.get(invoice.getAddressHash());
+            payment.invoice = invoice;
+            Notification notification = invoice.toNotification(payment.getTransactionHash());
+            if (notification != null) {
+                notifications.add(notification);
+            }
+        }
+        for (WatchingAddress watchingAddress : WatchingAddress.findAllByAddressHashes(addressHashes)) {
+            Payment payment = byAddressHash.get(watchingAddress.getAddressHash());
+            if (payment.invoice != null) {
+                continue;
+            }
+            payment.watchingAddress = watchingAddress;
+            Notification notification = watchingAddress.toNotification(payment.getTransactionHash());
+            if (notification != null) {
+                notifications.add(notification);
+            }
+        }
+        for (Payment payment : byAddressHash.values()) {
+            if (payment.invoice == null && payment.watchingAddress == null) {
+                logger.info("no invoice or watchingAddress found for: {}", payment.getAddressHash());
+            }
+        }
+        Notification.enqueueAll(connection, notifications);
+        return byAddressHash;
+    }
+
+    /**
+     * hands the written payments to the confirmation tracker with the confirmation thresholds of their invoice
+     */
+    private void track(List<Event> insertedEvents, Map<String, Payment> owners) {
+        if (ConfirmationTracker.instance == null) {
+            return;
+        }
+        for (Event event : insertedEvents) {
+            Payment owner = owners.get(event.addressHash);
+            Invoice invoice = owner == null ? null : owner.getInvoice();
+            int[] thresholds = Invoice.parseConfirmationThresholds(invoice == null ? null : invoice.getConfirmationThresholds());
+            ConfirmationTracker.instance.track(event.paymentId, event.transactionHash, event.addressHash, thresholds, event.appearedAtChainHeight);
+        }
+    }
+
+    public int getDepth() {
+        return this.events.size();
+    }
+
+    /**
+     * @return queue depth, payments received from the wallet, payments inserted, number of batches written and payments dropped
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("depth", this.getDepth());
+        stats.put("received", this.received.get());
+        stats.put("inserted", this.inserted.get());
+        stats.put("batches", this.batches.get());
+        stats.put("dropped", this.dropped.get());
+        return stats;
+    }
+}
@@ -1,6 +1,19 @@
 package pfennig;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.ExchangeRate;
@@ -11,21 +24,66 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.kevinsawicki.http.HttpRequest;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * converts between bitcoin and fiat currencies.
+ *
+ * the rates of all configured currencies are kept in an immutable snapshot that is swapped atomically by a
+ * single background refresher, thus reads never block. if the snapshot is older than the refresh interval
+ * the stale rates are still served while one refresh runs in the background.
+ *
+ * the last good snapshot is persisted to a file and loaded at startup, thus starting up does not wait for the
+ * exchange rate API. invoices are not priced with rates older than maxAge.
+ */
 public class PriceCalculator {
-    public static PriceCalculator EUR;
-    public static PriceCalculator USD;
-    public static PriceCalculator GBP;
+    static Logger logger = LoggerFactory.getLogger(PriceCalculator.class.getName());
+
+    static long refreshInterval = 5 * 60 * 1000; // in milliseconds
+    static long maxAge = 60 * 60 * 1000; // in milliseconds
+    static File snapshotFile;
+    static String exchange = "kraken";
+    static List<String> currencies = Collections.emptyList();
+
+    private static final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(Collections.emptyMap()));
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+    private static final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private static ScheduledExecutorService refresher;
 
     private String currency;
-    private String exchange;
-    private ExchangeRate rate;
-    private long lastUpdateTime = 0;
-    static Integer cacheTime = 5 * 60 * 1000; // in milliseconds
-    static Logger logger = LoggerFactory.getLogger(PriceCalculator.class.getName());
+    private Snapshot pinnedSnapshot;
+
+    /**
+     * an exchange rate and the time it was fetched
+     */
+    public static class Rate {
+        public final ExchangeRate exchangeRate;
+        public final long updatedAt;
+
+        public Rate(ExchangeRate exchangeRate, long updatedAt) {
+            this.exchangeRate = exchangeRate;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    /**
+     * an immutable set of rates by currency code
+     */
+    public static class Snapshot {
+        public final Map<String, Rate> rates;
+
+        public Snapshot(Map<String, Rate> rates) {
+            this.rates = Collections.unmodifiableMap(rates);
+        }
+
+        public Rate get(String currency) {
+            return this.rates.get(currency);
+        }
+    }
 
     public static ExchangeRate currentExchangeRate(String currency, String exchange) {
-        String raw = HttpRequest.get("https://api.bitcoinaverage.com/exchanges/" + currency).body();
+        String raw = HttpRequest.get("https://api.bitcoinaverage.com/exchanges/" + currency).connectTimeout(5000).readTimeout(10000).body();
 
         Object obj = JSONValue.parse(raw);
         JSONObject ticker = (JSONObject) obj;
@@ -33,70 +91,214 @@ public class PriceCalculator {
         JSONObject rates = (JSONObject) kraken.get("rates");
         double price = (Double) rates.get("last");
 
-        // see Fiat.SMALLEST_UNIT_EXPONENT 
+        // see Fiat.SMALLEST_UNIT_EXPONENT
         Fiat fiat = Fiat.valueOf(currency, new BigDecimal(price * (10000)).intValue());
         return new ExchangeRate(fiat);
     }
-    public void updateExchangeRate() {
-        if (!(this.lastUpdateTime < new java.util.Date().getTime() - cacheTime)) {
+
+    /**
+     * loads the persisted rates and starts the background refresher. does not wait for the first refresh.
+     *
+     * @param currencies - currency codes, e.g. EUR, USD
+     * @param exchange - the exchange name used on bitcoinaverage
+     * @param refreshInterval - in milliseconds
+     * @param maxAge - maximum age of a rate used to price invoices in milliseconds
+     * @param snapshotFile - file the last good rates are stored in
+     */
+    public static void init(List<String> currencies, String exchange, long refreshInterval, long maxAge, File snapshotFile) {
+        PriceCalculator.currencies = Collections.unmodifiableList(currencies);
+        PriceCalculator.exchange = exchange.toLowerCase();
+        PriceCalculator.refreshInterval = refreshInterval;
+        PriceCalculator.maxAge = maxAge;
+        PriceCalculator.snapshotFile = snapshotFile;
+
+        PriceCalculator.loadSnapshot();
+        for (String currency : currencies) {
+            Metrics.gauge("pfennig_exchange_rate_age_seconds", "age of the exchange rate", () -> {
+                Rate rate = snapshot.get().get(currency);
+                return rate == null ? Double.NaN : (new java.util.Date().getTime() - rate.updatedAt) / 1000.0;
+            }, "currency", currency);
+        }
+
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("exchange-rate-refresher").setDaemon(true).build());
+        refresher.scheduleWithFixedDelay(PriceCalculator::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    static void loadSnapshot() {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return;
+        }
+        try {
+            JSONObject stored = (JSONObject) JSONValue.parse(new String(Files.readAllBytes(snapshotFile.toPath()), Charsets.UTF_8));
+            Map<String, Rate> rates = new HashMap<String, Rate>();
+            for (String currency : currencies) {
+                JSONObject rate = (JSONObject) stored.get(currency);
+                if (rate != null) {
+                    Fiat fiat = Fiat.valueOf(currency, (Long) rate.get("rate"));
+                    rates.put(currency, new Rate(new ExchangeRate(fiat), (Long) rate.get("updatedAt")));
+                }
+            }
+            snapshot.set(new Snapshot(rates));
+            logger.info("loaded exchange rates from {}", snapshotFile.getPath());
+        } catch (Exception e) {
+            logger.error("could not load exchange rates from {}: {}", snapshotFile.getPath(), e.getMessage());
+        }
+    }
+
+    static void saveSnapshot(Snapshot rates) {
+        if (snapshotFile == null) {
+            return;
+        }
+        JSONObject stored = new JSONObject();
+        for (Map.Entry<String, Rate> rate : rates.rates.entrySet()) {
+            JSONObject value = new JSONObject();
+            value.put("rate", rate.getValue().exchangeRate.fiat.value);
+            value.put("updatedAt", rate.getValue().updatedAt);
+            stored.put(rate.getKey(), value);
+        }
+        try {
+            // write to a temporary file first so a crash never leaves a partial snapshot behind
+            File temporary = new File(snapshotFile.getPath() + ".tmp");
+            Files.write(temporary.toPath(), stored.toJSONString().getBytes(Charsets.UTF_8));
+            Files.move(temporary.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("could not save exchange rates to {}: {}", snapshotFile.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * fetches the rates of all configured currencies and swaps the snapshot.
+     * currencies that fail to update keep their previous rate.
+     */
+    static void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
             return;
         }
-        new Thread() {
-            @Override
-            public void run() {
+        try {
+            Map<String, Rate> rates = new HashMap<String, Rate>(snapshot.get().rates);
+            boolean updated = false;
+            for (String currency : currencies) {
                 try {
-                    logger.info("updating bitcoin price");
-                    rate = PriceCalculator.currentExchangeRate(currency, exchange);
-                    lastUpdateTime = new java.util.Date().getTime();
+                    ExchangeRate rate = PriceCalculator.currentExchangeRate(currency, exchange);
+                    rates.put(currency, new Rate(rate, new java.util.Date().getTime()));
+                    updated = true;
                 } catch (Exception e) {
-                    logger.error("error updating exchange rate: " + e.getMessage());
+                    logger.error("error updating exchange rate for {}: {}", currency, e.getMessage());
                 }
             }
-        }.start();
+            if (updated) {
+                Snapshot updatedSnapshot = new Snapshot(rates);
+                snapshot.set(updatedSnapshot);
+                PriceCalculator.saveSnapshot(updatedSnapshot);
+                logger.info("updated bitcoin prices");
+            }
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * triggers a refresh in the background unless one is already running
+     */
+    static void refreshInBackground() {
+        if (refresher != null && !refreshing.get() && refreshQueued.compareAndSet(false, true)) {
+            refresher.execute(() -> {
+                refreshQueued.set(false);
+                PriceCalculator.refresh();
+            });
+        }
+    }
+
+    public static Snapshot getSnapshot() {
+        return snapshot.get();
     }
 
-    public static void init() {
-        PriceCalculator.EUR = new PriceCalculator("EUR");
-        PriceCalculator.USD = new PriceCalculator("USD");
+    public static boolean isSupported(String currency) {
+        return currency != null && currencies.contains(currency.toUpperCase());
     }
 
+    /**
+     * @throws IllegalArgumentException if the currency is not configured
+     */
     public static PriceCalculator forCurrency(String currency) {
-        if (currency.toLowerCase().equals("eur")) {
-            return PriceCalculator.EUR;
-        } else if (currency.toLowerCase().equals("usd")) {
-            return PriceCalculator.USD;
-        } else {
-            // until we refactor the exchange price handling to be more configurable we just return EUR as default. - this will cause problems for those who use other/unsupported currencies
-            return PriceCalculator.EUR;
+        if (!PriceCalculator.isSupported(currency)) {
+            throw new IllegalArgumentException("unsupported currency: " + currency);
+        }
+        return new PriceCalculator(currency, null);
+    }
+
+    /**
+     * a calculator that uses the given snapshot instead of the current one, so a batch of conversions uses the same rates
+     *
+     * @throws IllegalArgumentException if the currency is not configured
+     */
+    public static PriceCalculator forCurrency(String currency, Snapshot snapshot) {
+        if (!PriceCalculator.isSupported(currency)) {
+            throw new IllegalArgumentException("unsupported currency: " + currency);
         }
+        return new PriceCalculator(currency, snapshot);
     }
 
-    public PriceCalculator(String currency) {
-        this.exchange = "kraken";
+    PriceCalculator(String currency, Snapshot pinnedSnapshot) {
         this.currency = currency.toUpperCase();
-        rate = PriceCalculator.currentExchangeRate(currency, exchange);
-        lastUpdateTime = new java.util.Date().getTime();
+        this.pinnedSnapshot = pinnedSnapshot;
+    }
+
+    private Rate getRate() {
+        return (this.pinnedSnapshot != null ? this.pinnedSnapshot : snapshot.get()).get(this.currency);
+    }
+
+    /**
+     * @throws IllegalStateException if there is no rate for the currency yet
+     */
+    public ExchangeRate getExchangeRate() {
+        Rate rate = this.getRate();
+        if (rate == null) {
+            PriceCalculator.refreshInBackground();
+            throw new IllegalStateException("no exchange rate for " + this.currency);
+        }
+        if (rate.updatedAt < new java.util.Date().getTime() - refreshInterval) {
+            PriceCalculator.refreshInBackground();
+        }
+        return rate.exchangeRate;
+    }
+
+    /**
+     * returns the exchange rate if it is not older than maxAge. used to price invoices.
+     *
+     * @throws StaleExchangeRateException if the rate is too old
+     */
+    public ExchangeRate getFreshExchangeRate() {
+        Rate rate = this.getRate();
+        if (rate == null || rate.updatedAt < new java.util.Date().getTime() - maxAge) {
+            PriceCalculator.refreshInBackground();
+            throw new StaleExchangeRateException("no current exchange rate for " + this.currency);
+        }
+        return this.getExchangeRate();
     }
 
-    public PriceCalculator(String currencyCode, String exchangeName) {
-        this.currency = currencyCode.toUpperCase();
-        this.exchange = exchangeName.toLowerCase();
-        this.updateExchangeRate();
+    /**
+     * @return the time the rate was fetched in milliseconds or 0 if there is no rate
+     */
+    public long getUpdatedAt() {
+        Rate rate = this.getRate();
+        return rate == null ? 0 : rate.updatedAt;
     }
 
     public Fiat coinToFiat(Coin convertCoin) {
-        this.updateExchangeRate();
-        return this.rate.coinToFiat(convertCoin);
+        return this.getExchangeRate().coinToFiat(convertCoin);
     }
 
+    /**
+     * converts with a rate not older than maxAge, see getFreshExchangeRate()
+     */
     public Coin fiatToCoin(Fiat convertFiat) {
-        this.updateExchangeRate();
-        return this.rate.fiatToCoin(convertFiat);
+        return this.getFreshExchangeRate().fiatToCoin(convertFiat);
     }
 
     public Coin fiatToCoin(String currencyCode, long value) {
         // we expect value to be in cents. the fiat class uses 4 as the SMALLEST_UNIT_EXPONENT thus we add another two digits
-        return this.fiatToCoin(Fiat.valueOf(currencyCode, value * 100));
+        return this.fiatToCoin(Fiat.valueOf(currencyCode.toUpperCase(), value * 100));
     }
 
     public Fiat coinToFiat(long satoshis) {
@@ -0,0 +1,198 @@
+package pfennig;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+/**
+ * renders the payment URIs of invoices as QR codes (PNG or SVG).
+ *
+ * a QR code is addressed by its invoice and the hash of the payment URI (/qr/[identifier]/[hash].png). the URI is
+ * built from the invoice on the server, the hash only changes the URL when the URI changes (e.g. with the missing
+ * amount), thus a URL never points to a different image and can be cached forever by browsers and CDNs.
+ * rendered images are kept in a LRU cache, only invoices that exist get into it.
+ */
+public class QrCodes {
+    static Logger logger = LoggerFactory.getLogger(QrCodes.class.getName());
+    static final int MODULE_SIZE = 6; // pixels per module of the PNG
+    static final int QUIET_ZONE = 4; // modules
+    static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private int cacheSize;
+    private Map<String, byte[]> cache;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    public QrCodes(int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return this.size() > QrCodes.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return the content address of the QR code of the payment URI of the invoice, e.g. /qr/[identifier]/3f2a....png
+     */
+    public static String pathOf(Invoice invoice, String format) {
+        return "/qr/" + invoice.getIdentifier() + "/" + QrCodes.hashOf(invoice.getPaymentUri()) + "." + format;
+    }
+
+    public static String hashOf(String uri) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(uri.getBytes(Charsets.UTF_8));
+            return BaseEncoding.base16().lowerCase().encode(hash).substring(0, 32);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param format - png or svg
+     * @throws WriterException if the URI does not fit into a QR code
+     */
+    public static byte[] render(String uri, String format) throws WriterException, IOException {
+        Map<EncodeHintType, Object> hints = new EnumMap<EncodeHintType, Object>(EncodeHintType.class);
+        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.M);
+        hints.put(EncodeHintType.MARGIN, 0);
+        BitMatrix matrix = new QRCodeWriter().encode(uri, BarcodeFormat.QR_CODE, 0, 0, hints);
+        return format.equals("svg") ? QrCodes.toSvg(matrix) : QrCodes.toPng(matrix);
+    }
+
+    /**
+     * writes the QR code of the invoice for a content address like [hash].png
+     *
+     * @return false if the file name is invalid, there is no such invoice, the hash is not the one of its current
+     * payment URI or the URI does not fit into a QR code
+     */
+    public boolean serve(String identifier, String file, String ifNoneMatch, HttpServletResponse response) throws IOException {
+        int extension = file.lastIndexOf('.');
+        if (extension < 0) {
+            return false;
+        }
+        String hash = file.substring(0, extension);
+        String format = file.substring(extension + 1);
+        if (!format.equals("png") && !format.equals("svg")) {
+            return false;
+        }
+
+        String key = identifier + "/" + file;
+        byte[] image;
+        synchronized (this.cache) {
+            image = this.cache.get(key);
+        }
+        if (image != null) {
+            this.hits.incrementAndGet();
+        } else {
+            Invoice invoice = Invoice.findByIdentifier(identifier);
+            if (invoice == null) {
+                return false;
+            }
+            String uri = invoice.getPaymentUri();
+            if (!QrCodes.hashOf(uri).equals(hash)) {
+                return false;
+            }
+            this.misses.incrementAndGet();
+            try {
+                image = QrCodes.render(uri, format);
+            } catch (WriterException e) {
+                logger.info("payment URI of invoice {} does not fit into a QR code: {}", identifier, e.getMessage());
+                return false;
+            }
+            synchronized (this.cache) {
+                this.cache.put(key, image);
+            }
+        }
+
+        String etag = "\"" + hash + "\"";
+        response.setHeader("Cache-Control", IMMUTABLE);
+        response.setHeader("ETag", etag);
+        if (etag.equals(ifNoneMatch)) {
+            response.setStatus(304);
+            response.flushBuffer();
+            return true;
+        }
+        response.setContentType(format.equals("svg") ? "image/svg+xml" : "image/png");
+        response.setContentLength(image.length);
+        response.getOutputStream().write(image);
+        response.flushBuffer();
+        return true;
+    }
+
+    private static byte[] toPng(BitMatrix matrix) throws IOException {
+        int size = (matrix.getWidth() + 2 * QUIET_ZONE) * MODULE_SIZE;
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY);
+        int[] white = new int[size * size];
+        Arrays.fill(white, 0xFFFFFF);
+        image.setRGB(0, 0, size, size, white, 0, size);
+        for (int y = 0; y < matrix.getHeight(); y++) {
+            for (int x = 0; x < matrix.getWidth(); x++) {
+                if (matrix.get(x, y)) {
+                    int left = (x + QUIET_ZONE) * MODULE_SIZE;
+                    int top = (y + QUIET_ZONE) * MODULE_SIZE;
+                    for (int dy = 0; dy < MODULE_SIZE; dy++) {
+                        for (int dx = 0; dx < MODULE_SIZE; dx++) {
+                            image.setRGB(left + dx, top + dy, 0x000000);
+                        }
+                    }
+                }
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    private static byte[] toSvg(BitMatrix matrix) {
+        int size = matrix.getWidth() + 2 * QUIET_ZONE;
+        StringBuilder path = new StringBuilder();
+        for (int y = 0; y < matrix.getHeight(); y++) {
+            for (int x = 0; x < matrix.getWidth(); x++) {
+                if (matrix.get(x, y)) {
+                    path.append('M').append(x + QUIET_ZONE).append(' ').append(y + QUIET_ZONE).append("h1v1h-1z");
+                }
+            }
+        }
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 " + size + " " + size + "\" shape-rendering=\"crispEdges\">"
+                + "<rect width=\"100%\" height=\"100%\" fill=\"#fff\"/><path fill=\"#000\" d=\"" + path + "\"/></svg>";
+        return svg.getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * @return number of cached images, cache hits and misses
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        synchronized (this.cache) {
+            stats.put("cached", this.cache.size());
+        }
+        stats.put("hits", this.hits.get());
+        stats.put("misses", this.misses.get());
+        return stats;
+    }
+}
@@ -0,0 +1,12 @@
+package pfennig;
+
+/**
+ * thrown when an exchange rate is older than the configured maximum age and can not be used to price an invoice
+ */
+public class StaleExchangeRateException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public StaleExchangeRateException(String message) {
+        super(message);
+    }
+}
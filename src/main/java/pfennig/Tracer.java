@@ -0,0 +1,211 @@
+package pfennig;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * records the stages of a payment, from the wallet seeing the transaction to the merchant being notified, as spans
+ * keyed by transaction hash.
+ *
+ * spans are kept in a fixed size ring buffer, thus the most recent spans are available through /admin/traces
+ * without an external tracing service. recording a span never blocks. optionally the spans are appended to a file
+ * as newline delimited JSON by a background thread; spans overwritten before they are flushed are skipped.
+ */
+public class Tracer {
+    public static Tracer instance;
+    static Logger logger = LoggerFactory.getLogger(Tracer.class.getName());
+    static final long FLUSH_INTERVAL = 1000; // in milliseconds
+
+    /**
+     * one stage of the handling of a transaction
+     */
+    public static class Span {
+        public final String transactionHash;
+        public final String stage;
+        public final String detail;
+        public final long startedAt; // in milliseconds since epoch
+        public final long duration; // in nanoseconds
+
+        Span(String transactionHash, String stage, String detail, long startedAt, long duration) {
+            this.transactionHash = transactionHash;
+            this.stage = stage;
+            this.detail = detail;
+            this.startedAt = startedAt;
+            this.duration = duration;
+        }
+
+        public JSONObject toJsonObject() {
+            JSONObject spanJson = new JSONObject();
+            spanJson.put("transactionHash", this.transactionHash);
+            spanJson.put("stage", this.stage);
+            spanJson.put("detail", this.detail);
+            spanJson.put("startedAt", this.startedAt);
+            spanJson.put("durationMs", this.duration / 1e6);
+            return spanJson;
+        }
+    }
+
+    private AtomicReferenceArray<Span> spans;
+    private AtomicLong recorded = new AtomicLong();
+    private File file;
+    private long flushed;
+    private AtomicLong skipped = new AtomicLong();
+    private ScheduledExecutorService flusher;
+
+    public Tracer(int size) {
+        this.spans = new AtomicReferenceArray<Span>(size);
+    }
+
+    /**
+     * appends the spans to the file every FLUSH_INTERVAL
+     */
+    public void flushTo(File file) {
+        this.file = file;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("trace-flusher").setDaemon(true).build());
+        this.flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * records a stage that started at System.nanoTime() start and ends now
+     */
+    public static void record(String transactionHash, String stage, long start) {
+        Tracer.record(transactionHash, stage, null, start, System.nanoTime());
+    }
+
+    /**
+     * records a stage between two System.nanoTime() readings
+     */
+    public static void record(String transactionHash, String stage, String detail, long start, long end) {
+        Tracer tracer = Tracer.instance;
+        if (tracer == null || transactionHash == null) {
+            return;
+        }
+        long duration = end - start;
+        long startedAt = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        tracer.add(new Span(transactionHash, stage, detail, startedAt, duration));
+    }
+
+    /**
+     * records a stage that started at a wall clock time, e.g. a timestamp from the database
+     *
+     * @param startedAt - in milliseconds since epoch
+     */
+    public static void recordAt(String transactionHash, String stage, String detail, long startedAt, long duration) {
+        Tracer tracer = Tracer.instance;
+        if (tracer == null || transactionHash == null) {
+            return;
+        }
+        tracer.add(new Span(transactionHash, stage, detail, startedAt, duration));
+    }
+
+    private void add(Span span) {
+        long index = this.recorded.getAndIncrement();
+        this.spans.set((int) (index % this.spans.length()), span);
+    }
+
+    /**
+     * @return the buffered spans of the transaction ordered by start
+     */
+    public List<Span> find(String transactionHash) {
+        List<Span> found = new ArrayList<Span>();
+        for (int i = 0; i < this.spans.length(); i++) {
+            Span span = this.spans.get(i);
+            if (span != null && span.transactionHash.equals(transactionHash)) {
+                found.add(span);
+            }
+        }
+        found.sort(Comparator.comparingLong(span -> span.startedAt));
+        return found;
+    }
+
+    /**
+     * @return the spans of the transactions seen most recently, newest first
+     */
+    public Map<String, List<Span>> recent(int transactions) {
+        Map<String, List<Span>> traces = new LinkedHashMap<String, List<Span>>();
+        long last = this.recorded.get() - 1;
+        long first = Math.max(0, this.recorded.get() - this.spans.length());
+        for (long index = last; index >= first && traces.size() < transactions; index--) {
+            Span span = this.spans.get((int) (index % this.spans.length()));
+            if (span != null && !traces.containsKey(span.transactionHash)) {
+                traces.put(span.transactionHash, this.find(span.transactionHash));
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * @return the spans of a transaction and the time from its first span starting to its last span ending
+     */
+    public static JSONObject toJson(String transactionHash, List<Span> spans) {
+        JSONObject traceJson = new JSONObject();
+        traceJson.put("transactionHash", transactionHash);
+        JSONArray spansJson = new JSONArray();
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (Span span : spans) {
+            JSONObject spanJson = span.toJsonObject();
+            spanJson.remove("transactionHash");
+            spansJson.add(spanJson);
+            start = Math.min(start, span.startedAt);
+            end = Math.max(end, span.startedAt + TimeUnit.NANOSECONDS.toMillis(span.duration));
+        }
+        traceJson.put("spans", spansJson);
+        traceJson.put("totalMs", spans.isEmpty() ? 0 : end - start);
+        return traceJson;
+    }
+
+    void flush() {
+        long last = this.recorded.get();
+        if (this.flushed >= last) {
+            return;
+        }
+        long first = Math.max(this.flushed, last - this.spans.length());
+        this.skipped.addAndGet(first - this.flushed);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), Charsets.UTF_8))) {
+            for (long index = first; index < last; index++) {
+                Span span = this.spans.get((int) (index % this.spans.length()));
+                if (span != null) {
+                    writer.write(span.toJsonObject().toJSONString());
+                    writer.write('\n');
+                }
+            }
+            this.flushed = last;
+        } catch (IOException e) {
+            logger.error("failed to write traces to {}: {}", this.file.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of recorded spans, the buffer size and the spans not written to the file
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("recorded", this.recorded.get());
+        stats.put("size", this.spans.length());
+        stats.put("skipped", this.skipped.get());
+        return stats;
+    }
+}
@@ -1,11 +1,12 @@
 package pfennig;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.InetAddress;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 
+import org.bitcoinj.core.AbstractBlockChainListener;
 import org.bitcoinj.core.AbstractWalletEventListener;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.AddressFormatException;
@@ -15,19 +16,19 @@ import org.bitcoinj.core.DownloadProgressTracker;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
-import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.Wallet;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
 
 public class Treasury {
     public static Treasury instance; //TODO: how to singleton? 
@@ -40,6 +41,14 @@ public class Treasury {
     public BlockChain blockChain;
     private PeerGroup peerGroup;
     public File walletFile;
+    public AddressPool addressPool;
+    private int addressPoolSize = 20;
+    public WalletJournal walletJournal;
+    private long walletSnapshotInterval = 5 * 60 * 1000; // in milliseconds
+    public PaymentIngestor paymentIngestor;
+    public ConfirmationTracker confirmationTracker;
+    private int paymentQueueSize = 10000;
+    private int paymentBatchSize = 500;
     static Logger logger = LoggerFactory.getLogger(Treasury.class.getName());
 
     public Treasury(String environment) throws Exception {
@@ -81,13 +90,15 @@ public class Treasury {
             public void run() {
                 try {
                     logger.info("shutting down");
-                    wallet.saveToFile(walletFile);
+                    paymentIngestor.stop();
+                    walletJournal.compact();
                     logger.info("saved all wallets, BYE");
                 } catch (Exception e) {
                     logger.error("error saving wallet");
                 }
             }
         });
+        this.addressPool.start();
         this.peerGroup.startAsync();
         this.peerGroup.awaitRunning();
         this.peerGroup.startBlockChainDownload(bListener);
@@ -106,33 +117,87 @@ public class Treasury {
         logger.info("found an existing wallet");
         this.wallet = Wallet.loadFromFile(walletFile);
         this.walletFile = walletFile;
+        this.walletJournal = new WalletJournal(this.params, walletFile, this.chainStore);
+        this.walletJournal.replay(this.wallet);
         this.registerWallet();
     }
 
-    public void loadWalletFromWatchingKey(String watchingKey, File walletFile, long keyBirthday) throws IOException {
+    public void loadWalletFromWatchingKey(String watchingKey, File walletFile, long keyBirthday) throws Exception {
         logger.warn("initiating wallet from watching key");
         DeterministicKey key = DeterministicKey.deserializeB58(watchingKey, this.params);
         this.wallet = Wallet.fromWatchingKey(this.params, key, keyBirthday);
         this.walletFile = walletFile;
+        // a journal without its wallet snapshot belongs to a different wallet
+        WalletJournal.journalFileFor(walletFile).delete();
+        this.walletJournal = new WalletJournal(this.params, walletFile, this.chainStore);
         this.registerWallet();
     }
     
-    private void registerWallet() throws IOException {
-        this.wallet.saveToFile(this.walletFile);
-        this.wallet.autosaveToFile(this.walletFile, 300, TimeUnit.MILLISECONDS, null);
-        this.wallet.addEventListener(new Treasury.WalletListener(this.params));
+    private void registerWallet() throws Exception {
+        // changes are journaled and compacted into a full snapshot every walletSnapshotInterval, see WalletJournal
+        this.walletJournal.start(this.wallet, this.blockChain, this.walletSnapshotInterval);
+        this.paymentIngestor = new PaymentIngestor(Payment.databaseConnnection, this.paymentQueueSize, this.paymentBatchSize);
+        this.paymentIngestor.start();
+        this.wallet.addEventListener(new Treasury.WalletListener(this.params, this.paymentIngestor));
         this.blockChain.addWallet(this.wallet);
+        // confirmations are tracked per block instead of with a depth future per transaction
+        this.confirmationTracker = new ConfirmationTracker(Payment.databaseConnnection, this.wallet, this.blockChain);
+        this.confirmationTracker.start();
+        ConfirmationTracker.instance = this.confirmationTracker;
+        // registered after the wallet, so the wallet has updated the transaction confidences when we are called
+        this.blockChain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
+                logger.warn("chain reorganized at height {}: {} blocks replaced by {}", splitPoint.getHeight(), oldBlocks.size(), newBlocks.size());
+                confirmationTracker.onReorganize(splitPoint.getHeight());
+            }
+        }, Threading.SAME_THREAD);
         this.peerGroup.addWallet(this.wallet);
+        this.addressPool = new AddressPool(this.wallet, this.params, this.addressPoolSize, this.walletJournal);
     }
-    
+
+    /**
+     * interval in which the wallet journal is compacted into a full wallet snapshot. must be set before the wallet is loaded
+     *
+     * @param walletSnapshotInterval - in milliseconds
+     */
+    public void setWalletSnapshotInterval(long walletSnapshotInterval) {
+        this.walletSnapshotInterval = walletSnapshotInterval;
+    }
+
+    /**
+     * number of pre-derived receive addresses kept in the address pool. must be set before the wallet is loaded
+     */
+    public void setAddressPoolSize(int addressPoolSize) {
+        this.addressPoolSize = addressPoolSize;
+    }
+
+    /**
+     * capacity of the queue of received payments waiting to be written and the maximum number of payments written
+     * with one statement. must be set before the wallet is loaded
+     */
+    public void setPaymentQueue(int paymentQueueSize, int paymentBatchSize) {
+        this.paymentQueueSize = paymentQueueSize;
+        this.paymentBatchSize = paymentBatchSize;
+    }
+
     public String freshReceiveAddress() {
-        return this.wallet.freshReceiveAddress().toString();
+        return this.addressPool.take();
+    }
+
+    public List<String> freshReceiveAddresses(int count) {
+        return this.addressPool.take(count);
     }
 
     public boolean addWatchedAddress(String addressHash) {
         try {
             Address address = new Address(this.params, addressHash);
-            return this.wallet.addWatchedAddress(address);
+            long creationTime = org.bitcoinj.core.Utils.currentTimeSeconds();
+            if (this.wallet.addWatchedAddress(address, creationTime)) {
+                this.walletJournal.recordWatchedAddress(address, creationTime);
+                return true;
+            }
+            return false;
         } catch (AddressFormatException e) {
             return false;
         }
@@ -142,6 +207,10 @@ public class Treasury {
         return this.blockChain.getBestChainHeight();
     }
 
+    public int getPeerCount() {
+        return this.peerGroup.numConnectedPeers();
+    }
+
     public String getChainHeadHashAsString() {
         return this.blockChain.getChainHead().getHeader().getHashAsString();
     }
@@ -155,50 +224,58 @@ public class Treasury {
 
     static class WalletListener extends AbstractWalletEventListener {
         private NetworkParameters params;
+        private PaymentIngestor paymentIngestor;
 
-        public WalletListener(NetworkParameters params) {
+        public WalletListener(NetworkParameters params, PaymentIngestor paymentIngestor) {
             this.params = params;
+            this.paymentIngestor = paymentIngestor;
         }
 
-        public String addressHashFor(Transaction tx, Wallet wallet) {
-            List<TransactionOutput> outputs = tx.getOutputs();
-            for (TransactionOutput output : outputs) {
+        /**
+         * sums the outputs of the transaction per address in a single pass. only addresses of invoices and watching
+         * addresses are looked at, using the address index instead of matching each output script against the wallet.
+         * if none of the outputs is in the index, the outputs the wallet considers its own are recorded with their values.
+         *
+         * @return the value sent to each of our addresses
+         */
+        public Map<String, Long> valuesByAddressFor(Transaction tx, Wallet wallet) {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (TransactionOutput output : tx.getOutputs()) {
                 Script script = output.getScriptPubKey();
-                if (output.isMine(wallet) && script.isSentToAddress()) {
-                    return script.getToAddress(this.params).toString();
+                if (!script.isSentToAddress() && !script.isPayToScriptHash()) {
+                    continue;
+                }
+                String address = script.getToAddress(this.params).toString();
+                if (AddressIndex.instance.contains(address)) {
+                    values.merge(address, output.getValue().getValue(), Long::sum);
+                }
+            }
+            if (values.isEmpty()) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    Script script = output.getScriptPubKey();
+                    if (output.isMineOrWatched(wallet) && (script.isSentToAddress() || script.isPayToScriptHash())) {
+                        String address = script.getToAddress(this.params).toString();
+                        logger.warn("wallet address {} of transaction {} is not in the address index", address, tx.getHashAsString());
+                        values.merge(address, output.getValue().getValue(), Long::sum);
+                    }
                 }
             }
-            return null;
+            return values;
         }
 
         @Override
         public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
-            logger.info("received transaction: " + tx.getHashAsString() + " value: " + tx.getValue(wallet));
-
-            String addressHash = this.addressHashFor(tx, wallet);
-            Payment.create(addressHash, tx, wallet);
-
-            Futures.addCallback(tx.getConfidence().getDepthFuture(2), new FutureCallback<TransactionConfidence>() {
-                @Override
-                public void onSuccess(TransactionConfidence confidence) {
-                    Transaction result = wallet.getTransaction(confidence.getTransactionHash());
-                    // "result" here is the same as "tx" above, but we use it anyway for clarity.
-                    String addressHash = WalletListener.this.addressHashFor(result, wallet);
-
-                    Payment payment = Payment.findByTransactionHash(tx.getHashAsString());
-                    if (payment != null) {
-                        payment.markAsConfirmed(addressHash, result, wallet);
-                    } else {
-                        logger.info("missing payment for transaction=" + tx.getHashAsString() + " address=" + addressHash);
-                    }
-                }
+            long start = System.nanoTime();
+            logger.info("received transaction: {} value: {}", tx.getHashAsString(), tx.getValue(wallet));
 
-                @Override
-                public void onFailure(Throwable t) {
-                    // This kind of future can't fail, just rethrow in case something very weird happens.
-                    throw new RuntimeException(t);
-                }
-            });
+            Map<String, Long> values = this.valuesByAddressFor(tx, wallet);
+            if (values.isEmpty()) {
+                logger.info("no address of ours in transaction: {}", tx.getHashAsString());
+                return;
+            }
+            // written to the database by the ingestor, not on the wallet thread
+            this.paymentIngestor.submit(PaymentIngestor.Event.fromTransaction(tx, values));
+            Tracer.record(tx.getHashAsString(), "wallet", start);
         }
     }
 }
@@ -1,16 +1,17 @@
 package pfennig;
 
-import java.util.Map;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.github.kevinsawicki.http.HttpRequest;
 import com.google.common.io.BaseEncoding;
 
 public class Utils {
@@ -26,51 +27,85 @@ public class Utils {
             byte[] rawHmac = mac.doFinal(data.getBytes("UTF-8"));
             result = BaseEncoding.base16().lowerCase().encode(rawHmac);
         } catch (Exception e) {
-            logger.error("faild to generate hmac: " + e.getMessage());
+            logger.error("faild to generate hmac: {}", e.getMessage());
             result = "";
         }
 
         return result;
     }
 
-    public static boolean sendNotification(String url, String body) {
-        HttpRequest request = HttpRequest.post(url);
-
-        request.header("Content-Type", "application/json");
-        if (Utils.HMAC_KEY != null && !Utils.HMAC_KEY.isEmpty()) {
-            request.header("X-PFENNIG-VERIFICATION", Utils.calculateHMAC(body));
+    /**
+     * @return true if the Authorization header is "Bearer " followed by the API_KEY. always false without an API_KEY
+     */
+    static boolean isAuthorized(String authorization) {
+        if (HMAC_KEY == null || HMAC_KEY.isEmpty() || authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
         }
         try {
-            request.send(body);
-
-            if (request.ok()) {
-                logger.info("notification successful url: " + url);
-                logger.debug("notification response: " + request.body());
-                return true;
-            } else {
-                logger.error("notification failed url: " + url + " status: " + request.code());
-                logger.debug("notification response body: " + request.body());
-                return false;
-            }
-        } catch (Exception e) {
-            logger.error("notification failed url: " + url + " - " + e.getMessage());
+            // constant time, the key must not leak through the response time
+            return MessageDigest.isEqual(HMAC_KEY.getBytes("UTF-8"), authorization.substring("Bearer ".length()).trim().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
             return false;
         }
     }
 
-    public static int chainHeightFromBlockChainInfo() {
-        int chainHeight;
-        try {
-            String blockChainInfoResponse = HttpRequest.get("https://blockchain.info/latestblock").body();
-            logger.debug("blockchain.info latest block: " + blockChainInfoResponse);
-            Map blockInfo = (Map) new JSONParser().parse(blockChainInfoResponse);
-            Object height = blockInfo.get("height");
-            chainHeight = ((Long) height).intValue();
-        } catch (ParseException e) {
-            e.printStackTrace();
-            logger.error("could not get chain height from blockchain.info: " + e.getMessage());
-            chainHeight = 0;
+    /**
+     * @return count comma separated JDBC placeholders, e.g. "?, ?, ?"
+     */
+    static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        return placeholders.toString();
+    }
+
+    /**
+     * binds the values to consecutive parameters
+     *
+     * @return the index of the next parameter
+     */
+    static int setStrings(PreparedStatement statement, int index, Collection<String> values) throws SQLException {
+        for (String value : values) {
+            statement.setString(index++, value);
+        }
+        return index;
+    }
+
+    /**
+     * whether the client accepts a gzipped response, respecting q-values: "gzip;q=0" refuses gzip
+     *
+     * @param acceptEncoding - the Accept-Encoding header, may be null
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzip = null;
+        Double any = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = quality;
+            } else if (name.equals("*")) {
+                any = quality;
+            }
+        }
+        if (gzip != null) {
+            return gzip > 0;
         }
-        return chainHeight;
+        return any != null && any > 0;
     }
 }
@@ -0,0 +1,373 @@
+package pfennig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.AbstractBlockChainListener;
+import org.bitcoinj.core.AbstractWalletEventListener;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.wallet.KeyChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * an append-only journal of wallet changes next to the wallet file.
+ *
+ * instead of rewriting the whole wallet on every change only the change is appended: issued receive keys,
+ * watched addresses, received and sent transactions, confidence changes (a transaction appearing in a block or dying)
+ * and the chain head. the journal is compacted into a full wallet snapshot on a schedule and replayed when the
+ * wallet is loaded.
+ *
+ * blocks are journaled as compact stored blocks (header, chain work and height). transactions are replayed through
+ * the wallet like transactions from the network, thus they end up in the same pool (pending, unspent or spent) and
+ * spend the same outputs as in the wallet that wrote the journal.
+ *
+ * one entry per line:
+ *   keys [number of issued receive keys]
+ *   watch [address] [creation time in seconds]
+ *   tx [transaction hex] [block or - if pending] [position in the block]
+ *   confidence [transaction hash] [block or dead] [position in the block]
+ *   head [block]
+ */
+public class WalletJournal extends AbstractWalletEventListener {
+    static Logger logger = LoggerFactory.getLogger(WalletJournal.class.getName());
+    static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    // transactions deeper than this are assumed to stay in their block, see onTransactionConfidenceChanged
+    static final int MAX_REORGANIZATION_DEPTH = 100;
+
+    private NetworkParameters params;
+    private BlockStore blockStore;
+    private Wallet wallet;
+    private File walletFile;
+    private File journalFile;
+    private FileChannel channel;
+    private int entries = 0;
+    private int issuedKeys = 0;
+    // the last journaled height of recent transactions, so depth changes are not journaled. pruned on compaction
+    private ConcurrentHashMap<Sha256Hash, Integer> heights = new ConcurrentHashMap<Sha256Hash, Integer>();
+    private ScheduledExecutorService compactor;
+
+    public WalletJournal(NetworkParameters params, File walletFile, BlockStore blockStore) {
+        this.params = params;
+        this.walletFile = walletFile;
+        this.journalFile = WalletJournal.journalFileFor(walletFile);
+        this.blockStore = blockStore;
+    }
+
+    public static File journalFileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * applies the changes journaled since the last snapshot to the loaded wallet
+     */
+    public void replay(Wallet wallet) throws IOException {
+        if (!this.journalFile.exists()) {
+            return;
+        }
+        int issuedKeys = 0;
+        int replayed = 0;
+        StoredBlock head = null;
+        for (String line : Files.readAllLines(this.journalFile.toPath(), Charsets.UTF_8)) {
+            String[] entry = line.split(" ");
+            try {
+                if (entry[0].equals("keys")) {
+                    issuedKeys = Math.max(issuedKeys, Integer.parseInt(entry[1]));
+                } else if (entry[0].equals("watch")) {
+                    Address address = new Address(this.params, entry[1]);
+                    if (!wallet.isAddressWatched(address)) {
+                        wallet.addWatchedAddress(address, Long.parseLong(entry[2]));
+                    }
+                } else if (entry[0].equals("tx")) {
+                    Transaction tx = new Transaction(this.params, HEX.decode(entry[1]));
+                    Transaction existing = wallet.getTransaction(tx.getHash());
+                    StoredBlock block = this.decodeBlock(entry[2]);
+                    if (block == null) {
+                        if (existing == null) {
+                            wallet.receivePending(tx, null);
+                        }
+                    } else {
+                        WalletJournal.receiveFromBlock(wallet, existing == null ? tx : existing, block, Integer.parseInt(entry[3]));
+                        head = WalletJournal.higher(head, block);
+                    }
+                } else if (entry[0].equals("confidence")) {
+                    Transaction tx = wallet.getTransaction(Sha256Hash.wrap(entry[1]));
+                    if (tx == null) {
+                        continue;
+                    }
+                    if (entry[2].equals("dead")) {
+                        // the wallet moves dead transactions only while reorganizing, they stay in their pool
+                        tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
+                    } else {
+                        StoredBlock block = this.decodeBlock(entry[2]);
+                        WalletJournal.receiveFromBlock(wallet, tx, block, Integer.parseInt(entry[3]));
+                        head = WalletJournal.higher(head, block);
+                    }
+                } else if (entry[0].equals("head")) {
+                    head = WalletJournal.higher(head, this.decodeBlock(entry[1]));
+                } else {
+                    continue;
+                }
+                replayed++;
+            } catch (Exception e) {
+                // most likely the last line, written partially on a crash
+                logger.error("skipping wallet journal entry {}: {}", entry[0], e.getMessage());
+            }
+        }
+
+        if (head != null && head.getHeight() > wallet.getLastBlockSeenHeight()) {
+            // moves the last seen block of the wallet. the depths are only counted up by one, they are set below
+            wallet.notifyNewBestBlock(head);
+            for (Transaction tx : wallet.getTransactions(false)) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+                    confidence.setDepthInBlocks(Math.max(1, head.getHeight() - confidence.getAppearedAtChainHeight() + 1));
+                }
+            }
+        }
+
+        int missingKeys = issuedKeys - wallet.getActiveKeychain().getIssuedExternalKeys();
+        if (missingKeys > 0) {
+            wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, missingKeys);
+        }
+        logger.info("replayed {} wallet journal entries", replayed);
+    }
+
+    /**
+     * hands a transaction to the wallet as if it was received in the block, which moves it to the right pool.
+     * skipped if the wallet already has the transaction in this block, e.g. from the snapshot
+     */
+    private static void receiveFromBlock(Wallet wallet, Transaction tx, StoredBlock block, int position) {
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn != null && appearsIn.containsKey(block.getHeader().getHash())
+                && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+            return;
+        }
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, position);
+    }
+
+    /**
+     * the chain head may not have been written before a crash, thus the highest block of the journal is used
+     */
+    private static StoredBlock higher(StoredBlock head, StoredBlock block) {
+        if (head == null || block.getHeight() >= head.getHeight()) {
+            return block;
+        }
+        return head;
+    }
+
+    /**
+     * writes a full snapshot, opens a new journal and compacts it every interval
+     *
+     * @param interval - in milliseconds
+     */
+    public void start(Wallet wallet, BlockChain blockChain, long interval) throws IOException {
+        this.wallet = wallet;
+        this.issuedKeys = wallet.getActiveKeychain().getIssuedExternalKeys();
+        this.channel = new FileOutputStream(this.journalFile, true).getChannel();
+        this.compact();
+
+        wallet.addEventListener(this);
+        blockChain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                WalletJournal.this.recordHead(block);
+            }
+
+            @Override
+            public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+                WalletJournal.this.recordHead(newBlocks.get(0));
+            }
+        });
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("wallet-journal-compactor").setDaemon(true).build());
+        this.compactor.scheduleWithFixedDelay(() -> {
+            try {
+                if (this.hasEntries()) {
+                    this.compact();
+                }
+            } catch (Exception e) {
+                logger.error("failed to compact wallet journal: {}", e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * saves a full wallet snapshot and empties the journal
+     */
+    public synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        this.wallet.saveToFile(this.walletFile);
+        this.channel.truncate(0);
+        this.channel.force(true);
+        this.pruneHeights();
+        logger.info("saved wallet snapshot, compacted {} journal entries in {}ms", this.entries, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        this.entries = 0;
+    }
+
+    public synchronized boolean hasEntries() {
+        return this.entries > 0;
+    }
+
+    /**
+     * journals newly issued receive keys. call after deriving keys with freshKeys/freshReceiveAddress
+     */
+    public synchronized void recordIssuedKeys() {
+        int issuedKeys = this.wallet.getActiveKeychain().getIssuedExternalKeys();
+        if (issuedKeys > this.issuedKeys) {
+            this.issuedKeys = issuedKeys;
+            this.append("keys " + issuedKeys);
+        }
+    }
+
+    public void recordWatchedAddress(Address address, long creationTime) {
+        this.append("watch " + address.toString() + " " + creationTime);
+    }
+
+    /**
+     * the journal only needs the heights of transactions that may still move to another block
+     */
+    private void pruneHeights() {
+        for (Iterator<Sha256Hash> it = this.heights.keySet().iterator(); it.hasNext();) {
+            Transaction tx = this.wallet.getTransaction(it.next());
+            if (tx == null || tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING
+                    || tx.getConfidence().getDepthInBlocks() > MAX_REORGANIZATION_DEPTH) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        this.recordTransaction(tx);
+    }
+
+    @Override
+    public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        this.recordTransaction(tx);
+    }
+
+    private void recordTransaction(Transaction tx) {
+        this.heights.put(tx.getHash(), WalletJournal.heightOf(tx));
+        this.append("tx " + HEX.encode(tx.bitcoinSerialize()) + " " + this.blockOf(tx));
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        ConfidenceType type = confidence.getConfidenceType();
+        if (type == ConfidenceType.BUILDING && confidence.getDepthInBlocks() > MAX_REORGANIZATION_DEPTH) {
+            // the depth of every mined transaction changes with every block
+            return;
+        }
+        int height = WalletJournal.heightOf(tx);
+        Integer journaled = this.heights.get(tx.getHash());
+        if (journaled != null && journaled == height) {
+            return;
+        }
+        if (type == ConfidenceType.BUILDING) {
+            this.heights.put(tx.getHash(), height);
+            this.append("confidence " + tx.getHashAsString() + " " + this.blockOf(tx));
+        } else if (type == ConfidenceType.DEAD) {
+            this.heights.put(tx.getHash(), height);
+            this.append("confidence " + tx.getHashAsString() + " dead 0");
+        }
+    }
+
+    /**
+     * the chain head is written without forcing it to disk. a head lost on a crash is harmless: the block chain is
+     * rolled back to the last block the wallet has seen and downloaded again
+     */
+    void recordHead(StoredBlock block) {
+        this.append("head " + WalletJournal.encodeBlock(block), false);
+    }
+
+    private static int heightOf(Transaction tx) {
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+            return tx.getConfidence().getAppearedAtChainHeight();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the block the transaction appeared in on the best chain and its position, or "- 0" if it is not mined
+     */
+    private String blockOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING && appearsIn != null) {
+            for (Map.Entry<Sha256Hash, Integer> appearance : appearsIn.entrySet()) {
+                try {
+                    StoredBlock block = this.blockStore.get(appearance.getKey());
+                    if (block != null && block.getHeight() == confidence.getAppearedAtChainHeight()) {
+                        return WalletJournal.encodeBlock(block) + " " + appearance.getValue();
+                    }
+                } catch (BlockStoreException e) {
+                    logger.error("failed to read block {}: {}", appearance.getKey(), e.getMessage());
+                }
+            }
+        }
+        return "- 0";
+    }
+
+    private static String encodeBlock(StoredBlock block) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(buffer);
+        return HEX.encode(buffer.array());
+    }
+
+    /**
+     * @return the block or null for "-"
+     */
+    private StoredBlock decodeBlock(String encoded) {
+        if (encoded.equals("-")) {
+            return null;
+        }
+        return StoredBlock.deserializeCompact(this.params, ByteBuffer.wrap(HEX.decode(encoded)));
+    }
+
+    private void append(String entry) {
+        this.append(entry, true);
+    }
+
+    /**
+     * @param force - whether the entry is forced to disk before returning
+     */
+    private synchronized void append(String entry, boolean force) {
+        try {
+            this.channel.write(ByteBuffer.wrap((entry + "\n").getBytes(Charsets.UTF_8)));
+            if (force) {
+                this.channel.force(false);
+            }
+            this.entries++;
+        } catch (IOException e) {
+            logger.error("failed to write wallet journal: {}", e.getMessage());
+        }
+    }
+}
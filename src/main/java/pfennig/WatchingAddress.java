@@ -1,6 +1,12 @@
 package pfennig;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,6 +15,7 @@ import java.util.UUID;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.PersistenceException;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
@@ -25,12 +32,17 @@ import spark.QueryParamsMap;
 
 import com.avaje.ebean.Ebean;
 import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
 
 @Entity
 @Table(name = "watching_addresses")
 public class WatchingAddress {
     static EbeanServer databaseConnnection;
     static Logger logger = LoggerFactory.getLogger(WatchingAddress.class.getName());
+    static final Metrics.Histogram FIND_BY_ADDRESS_HASH_QUERIES = Metrics.query("WatchingAddress.findByAddressHash");
+    static final Metrics.Histogram FIND_BY_IDENTIFIER_QUERIES = Metrics.query("WatchingAddress.findByIdentifier");
+    static final Metrics.Histogram FIND_ALL_BY_ADDRESS_HASHES_QUERIES = Metrics.query("WatchingAddress.findAllByAddressHashes");
+    static final Metrics.Histogram PRELOAD_PAYMENTS_QUERIES = Metrics.query("WatchingAddress.preloadPayments");
 
     @Id
     Integer id;
@@ -58,21 +70,64 @@ public class WatchingAddress {
     @Transient
     List<ConstraintViolation> violations;
 
+    @Transient
+    List<Payment> payments;
+
     public static WatchingAddress findByAddressHash(String addressHash) {
         if (addressHash == null) {
             return null;
         }
+        long start = System.nanoTime();
         List<WatchingAddress> addresses = Ebean.find(WatchingAddress.class).where().eq("address_hash", addressHash.trim()).setMaxRows(1).findList();
+        FIND_BY_ADDRESS_HASH_QUERIES.observeSince(start);
         if (addresses.isEmpty())
             return null;
         return addresses.get(0);
     }
 
+    /**
+     * loads the watched addresses and their payments with two queries
+     */
+    public static List<WatchingAddress> findAllByAddressHashes(Collection<String> addressHashes) {
+        if (addressHashes.isEmpty()) {
+            return new ArrayList<WatchingAddress>();
+        }
+        long start = System.nanoTime();
+        List<WatchingAddress> addresses = WatchingAddress.databaseConnnection.find(WatchingAddress.class).where().in("addressHash", addressHashes).findList();
+        FIND_ALL_BY_ADDRESS_HASHES_QUERIES.observeSince(start);
+        WatchingAddress.preloadPayments(addresses);
+        return addresses;
+    }
+
+    /**
+     * loads the payments of all addresses with one query instead of one query per address
+     */
+    public static void preloadPayments(List<WatchingAddress> addresses) {
+        Map<String, List<Payment>> byAddressHash = new HashMap<String, List<Payment>>();
+        for (WatchingAddress address : addresses) {
+            byAddressHash.put(address.getAddressHash(), new ArrayList<Payment>());
+        }
+        if (!byAddressHash.isEmpty()) {
+            long start = System.nanoTime();
+            List<Payment> payments = WatchingAddress.databaseConnnection.find(Payment.class).where()
+                    .in("addressHash", byAddressHash.keySet()).order("id DESC").findList();
+            PRELOAD_PAYMENTS_QUERIES.observeSince(start);
+            for (Payment payment : payments) {
+                byAddressHash.get(payment.getAddressHash()).add(payment);
+            }
+        }
+        for (WatchingAddress address : addresses) {
+            address.payments = byAddressHash.get(address.getAddressHash());
+        }
+    }
+
     public static WatchingAddress findByIdentifier(String identifier) {
         if (identifier == null) {
             return null;
         }
+        long start = System.nanoTime();
         List<WatchingAddress> addresses = Ebean.find(WatchingAddress.class).where().eq("identifier", identifier.trim()).setMaxRows(1).findList();
+        FIND_BY_IDENTIFIER_QUERIES.observeSince(start);
         if (addresses.isEmpty())
             return null;
         return addresses.get(0);
@@ -87,35 +142,102 @@ public class WatchingAddress {
         return address;
     }
 
-    public boolean sendNotification() {
-        if (this.getNotificationUrl() == null || this.getNotificationUrl().trim().isEmpty()) {
-            logger.info("no notificationUrl for address: " + this.getIdentifier());
-            return true;
+    /**
+     * writes a notification with the current state to the outbox. it is delivered by the NotificationDispatcher.
+     *
+     * @param transactionHash - the transaction that caused the notification, used for tracing. may be null
+     */
+    public void enqueueNotification(String transactionHash) {
+        Notification notification = this.toNotification(transactionHash);
+        if (notification != null) {
+            Notification.databaseConnnection.save(notification);
         }
+    }
 
-        logger.info("sending notification for address " + this.getIdentifier() + " to: " + this.getNotificationUrl());
-        if (Utils.sendNotification(this.getNotificationUrl(), this.toJson())) {
-            logger.info("notification successful for address " + this.getIdentifier());
-            return true;
-        } else {
-            logger.error("notification failed for address " + this.getIdentifier());
-            return true;
+    /**
+     * @return a notification with the current state, not written yet. null if there is no notificationUrl
+     */
+    Notification toNotification(String transactionHash) {
+        if (this.getNotificationUrl() == null || this.getNotificationUrl().trim().isEmpty()) {
+            logger.info("no notificationUrl for address: {}", this.getIdentifier());
+            return null;
         }
 
+        logger.info("queueing notification for address {} to: {}", this.getIdentifier(), this.getNotificationUrl());
+        return Notification.create(this.getNotificationUrl(), this.toJson(), transactionHash);
     }
 
     public boolean save() {
         if (this.identifier == null)
             this.identifier = UUID.randomUUID().toString();
+        if (this.receivedSatoshi == null)
+            this.receivedSatoshi = 0L;
 
         if (this.isValid()) {
             WatchingAddress.databaseConnnection.save(this);
+            if (AddressIndex.instance != null) {
+                AddressIndex.instance.put(this.getAddressHash(), AddressIndex.OwnerType.WATCHING_ADDRESS, this.getId());
+            }
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * recalculates the stored received amount from the payments of the address.
+     * called whenever a payment for the address is written. joins the current transaction if there is one.
+     */
+    public void refreshReceivedSatoshi() {
+        Transaction transaction = WatchingAddress.databaseConnnection.currentTransaction();
+        boolean ownTransaction = transaction == null || !transaction.isActive();
+        if (ownTransaction) {
+            transaction = WatchingAddress.databaseConnnection.beginTransaction();
+        }
+        try {
+            WatchingAddress.refreshReceivedSatoshi(transaction.getConnection(), Collections.singletonList(this.getAddressHash()));
+            WatchingAddress.databaseConnnection.refresh(this);
+            if (ownTransaction) {
+                transaction.commit();
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            if (ownTransaction) {
+                transaction.end();
+            }
+        }
+        this.payments = null;
+    }
+
+    /**
+     * recalculates the stored received amount of the watched addresses with one statement. the rows are locked first,
+     * see Invoice.refreshPaymentAggregates
+     */
+    static void refreshReceivedSatoshi(Connection connection, Collection<String> addressHashes) throws SQLException {
+        if (addressHashes.isEmpty()) {
+            return;
+        }
+        String placeholders = Utils.placeholders(addressHashes.size());
+        PreparedStatement lock = connection.prepareStatement("select id from watching_addresses where address_hash in (" + placeholders + ") order by id for update");
+        try {
+            Utils.setStrings(lock, 1, addressHashes);
+            lock.executeQuery().close();
+        } finally {
+            lock.close();
+        }
+
+        PreparedStatement update = connection.prepareStatement("update watching_addresses w set received_satoshi = a.received"
+                + " from (select p.address_hash, sum(p.received_satoshi_value) as received from payments p"
+                + " where p.address_hash in (" + placeholders + ") group by p.address_hash) a where w.address_hash = a.address_hash");
+        try {
+            Utils.setStrings(update, 1, addressHashes);
+            update.executeUpdate();
+        } finally {
+            update.close();
+        }
+    }
+
     public boolean isValid() {
         Validator validator = new Validator();
         this.violations = validator.validate(this);
@@ -128,6 +250,7 @@ public class WatchingAddress {
         addressJson.put("address_hash", this.getAddressHash());
 
         addressJson.put("label", this.getLabel());
+        addressJson.put("receivedSatoshi", this.getReceivedSatoshi());
         addressJson.put("transactions", this.getTransactionHashes());
 
         return addressJson.toJSONString();
@@ -141,8 +264,14 @@ public class WatchingAddress {
         return hashes;
     }
 
+    /**
+     * returns the payments of the address. loaded once per instance.
+     */
     public List<Payment> getPayments() {
-        return Payment.findByAddressHash(this.getAddressHash());
+        if (this.payments == null) {
+            this.payments = Payment.findByAddressHash(this.getAddressHash());
+        }
+        return this.payments;
     }
 
     public Integer getId() {
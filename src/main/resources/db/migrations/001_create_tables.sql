@@ -0,0 +1,45 @@
+-- baseline schema as generated by ebean. existing installations already have these tables
+create table if not exists invoices (
+  id                        integer not null,
+  price                     bigint,
+  satoshi_value             bigint,
+  currency                  varchar(255),
+  notification_url          varchar(255),
+  order_id                  varchar(255),
+  description               varchar(255),
+  identifier                varchar(255),
+  paid_at                   timestamp,
+  label                     varchar(255),
+  address_hash              varchar(255),
+  created_at                timestamp not null,
+  constraint pk_invoices primary key (id))
+;
+
+create table if not exists payments (
+  id                        integer not null,
+  received_satoshi_value    bigint,
+  transaction_hash          varchar(255),
+  appeared_at_chain_height  integer,
+  address_hash              varchar(255),
+  paid_at                   timestamp,
+  confirmed_at              timestamp,
+  created_at                timestamp not null,
+  constraint pk_payments primary key (id))
+;
+
+create table if not exists watching_addresses (
+  id                        integer not null,
+  notification_url          varchar(255),
+  identifier                varchar(255),
+  address_hash              varchar(255),
+  received_satoshi          bigint,
+  label                     varchar(255),
+  created_at                timestamp,
+  constraint pk_watching_addresses primary key (id))
+;
+
+create sequence if not exists invoices_seq;
+
+create sequence if not exists payments_seq;
+
+create sequence if not exists watching_addresses_seq;
@@ -0,0 +1,38 @@
+-- indexes for the finders in Invoice, Payment and WatchingAddress
+
+-- a payment written twice for the same transaction and address is a duplicate, the first one is kept.
+-- uniqueness of payments is enforced from 007_payment_per_output.sql on
+delete from payments where id in (
+  select id from (select id, row_number() over (partition by transaction_hash, address_hash order by id) as n
+    from payments where transaction_hash is not null) ranked
+  where ranked.n > 1);
+
+-- duplicate identifiers and order ids can not be merged automatically. the migration fails and lists them
+do $$
+declare
+  duplicates text;
+begin
+  select string_agg(duplicate, ', ') into duplicates from (
+    select 'invoices.identifier=' || identifier as duplicate from invoices
+      where identifier is not null group by identifier having count(*) > 1
+    union all
+    select 'invoices.order_id=' || order_id from invoices
+      where order_id is not null group by order_id having count(*) > 1
+    union all
+    select 'watching_addresses.identifier=' || identifier from watching_addresses
+      where identifier is not null group by identifier having count(*) > 1
+  ) found;
+  if duplicates is not null then
+    raise exception 'duplicate keys, resolve them before upgrading: %', duplicates;
+  end if;
+end $$;
+
+create unique index if not exists ix_invoices_identifier on invoices (identifier);
+create unique index if not exists ix_invoices_order_id on invoices (order_id);
+create index if not exists ix_invoices_address_hash on invoices (address_hash);
+
+create index if not exists ix_payments_transaction_hash on payments (transaction_hash);
+create index if not exists ix_payments_address_hash on payments (address_hash);
+
+create unique index if not exists ix_watching_addresses_identifier on watching_addresses (identifier);
+create index if not exists ix_watching_addresses_address_hash on watching_addresses (address_hash);
@@ -0,0 +1,19 @@
+-- payment aggregates stored on invoices, see Invoice.refreshPaymentAggregates()
+alter table invoices add column if not exists received_satoshi bigint;
+alter table invoices add column if not exists status varchar(255);
+alter table invoices add column if not exists last_payment_height integer;
+alter table invoices add column if not exists payment_count integer;
+
+update invoices set
+  received_satoshi = coalesce((select sum(p.received_satoshi_value) from payments p where p.address_hash = invoices.address_hash), 0),
+  payment_count = (select count(*) from payments p where p.address_hash = invoices.address_hash),
+  last_payment_height = (select p.appeared_at_chain_height from payments p where p.address_hash = invoices.address_hash order by p.id desc limit 1);
+
+update invoices set status = case
+  when received_satoshi = 0 then 'pending'
+  when received_satoshi = satoshi_value then 'paid'
+  when received_satoshi > satoshi_value then 'paidOver'
+  else 'paidPartial' end;
+
+update watching_addresses set
+  received_satoshi = coalesce((select sum(p.received_satoshi_value) from payments p where p.address_hash = watching_addresses.address_hash), 0);
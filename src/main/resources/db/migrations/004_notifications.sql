@@ -0,0 +1,17 @@
+-- webhook outbox, see Notification and NotificationDispatcher
+create table if not exists notifications (
+  id                        integer not null,
+  url                       varchar(255),
+  body                      text,
+  attempts                  integer,
+  next_attempt_at           timestamp,
+  delivered_at              timestamp,
+  failed_at                 timestamp,
+  last_error                varchar(255),
+  created_at                timestamp not null,
+  constraint pk_notifications primary key (id))
+;
+
+create sequence if not exists notifications_seq;
+
+create index if not exists ix_notifications_pending on notifications (next_attempt_at) where delivered_at is null and failed_at is null;
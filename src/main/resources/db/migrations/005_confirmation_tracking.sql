@@ -0,0 +1,13 @@
+-- confirmation state of payments, see ConfirmationTracker
+alter table payments add column if not exists confirmations_notified integer not null default 0;
+alter table payments add column if not exists next_confirmation_height integer;
+alter table invoices add column if not exists confirmation_thresholds varchar(255);
+
+-- payments confirmed by the old depth futures count as notified at 2 confirmations.
+-- the futures did not survive a restart, thus mined payments without confirmed_at were never going to be confirmed.
+-- they count as confirmed too, otherwise all of them would be notified on the first block after the upgrade.
+-- payments that are not mined yet are tracked from now on
+update payments set confirmations_notified = 2, confirmed_at = coalesce(confirmed_at, now())
+  where confirmed_at is not null or appeared_at_chain_height is not null;
+
+create index if not exists ix_payments_pending_confirmation on payments (id) where confirmed_at is null;
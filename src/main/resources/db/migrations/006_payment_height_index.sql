@@ -0,0 +1,2 @@
+-- finds the payments above the split point of a chain reorganization, see ConfirmationTracker.reorganize()
+create index if not exists ix_payments_appeared_at_chain_height on payments (appeared_at_chain_height);
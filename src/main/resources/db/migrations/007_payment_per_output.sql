@@ -0,0 +1,4 @@
+-- a transaction paying several of our addresses results in one payment per address, see PaymentIngestor
+drop index if exists ix_payments_transaction_hash;
+create unique index if not exists ix_payments_transaction_hash_address_hash on payments (transaction_hash, address_hash);
+create index if not exists ix_payments_transaction_hash on payments (transaction_hash);
@@ -0,0 +1,3 @@
+-- keyset pagination of invoices, see Invoice.findPage()
+create index if not exists ix_invoices_created_at_id on invoices (created_at, id);
+create index if not exists ix_invoices_status_created_at_id on invoices (status, created_at, id);
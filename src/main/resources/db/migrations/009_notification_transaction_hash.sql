@@ -0,0 +1,2 @@
+-- the transaction that caused a notification, see Tracer
+alter table notifications add column if not exists transaction_hash varchar(255);
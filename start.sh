@@ -53,12 +53,7 @@ if [ ! $($PSQL -c '\l'| grep pfennig) ]; then
   $PSQL -c "create database pfennig;"
 fi
 
-#TODO: some shema migration
-# if no invoices table is there we run the create script
-if [ ! $($PSQL -c '\dt' pfennig | grep invoices) ]; then
-  echo "importing schema"
-  $PSQL -f pfennig-create.sql pfennig
-fi
+# the schema is created and migrated by the app on startup (see src/main/resources/db/migrations)
 
 echo $DATABASE_URL
 echo "running pfennig"